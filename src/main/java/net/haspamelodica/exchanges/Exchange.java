@@ -1,6 +1,6 @@
 package net.haspamelodica.exchanges;
 
-import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.DEFAULT_BUSY_WAIT_TIMEOUT_NANOS;
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.DEFAULT_WAIT_STRATEGY;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -12,14 +12,11 @@ import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.atomic.AtomicReference;
 
 import net.haspamelodica.exchanges.pipes.Pipe;
 import net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon;
-import net.haspamelodica.exchanges.sharedmem.SharedMemoryInputStream;
-import net.haspamelodica.exchanges.sharedmem.SharedMemoryOutputStream;
+import net.haspamelodica.exchanges.sharedmem.WaitStrategy;
 import net.haspamelodica.exchanges.stats.StatisticsExchange;
-import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
 import net.haspamelodica.exchanges.util.AutoCloseablePair;
 import net.haspamelodica.exchanges.util.IOAutoCloseable;
 import net.haspamelodica.exchanges.util.IORunnable;
@@ -117,84 +114,34 @@ public interface Exchange extends IOAutoCloseable
 	}
 	public static AutoCloseablePair<Exchange, Exchange> openPiped(int bufsize)
 	{
-		return openPiped(bufsize, DEFAULT_BUSY_WAIT_TIMEOUT_NANOS);
+		return openPiped(bufsize, DEFAULT_WAIT_STRATEGY);
 	}
 	public static AutoCloseablePair<Exchange, Exchange> openPiped(int bufsize, long busyWaitTimeoutNanos)
 	{
-		Exchange pipe1 = openSharedMemoryPipe(bufsize, busyWaitTimeoutNanos);
-		Exchange pipe2 = openSharedMemoryPipe(bufsize, busyWaitTimeoutNanos);
+		return openPiped(bufsize, WaitStrategy.spin(busyWaitTimeoutNanos));
+	}
+	public static AutoCloseablePair<Exchange, Exchange> openPiped(int bufsize, WaitStrategy waitStrategy)
+	{
+		Exchange pipe1 = openSharedMemoryPipe(bufsize, waitStrategy);
+		Exchange pipe2 = openSharedMemoryPipe(bufsize, waitStrategy);
 		return new AutoCloseablePair<>(
 				ofNoExtraCloseAction(pipe1.in(), pipe2.out()),
 				ofNoExtraCloseAction(pipe2.in(), pipe1.out()));
 	}
 
-	private static Exchange openSharedMemoryPipe(int bufsize, long busyWaitTimeoutNanos)
+	private static Exchange openSharedMemoryPipe(int bufsize, WaitStrategy waitStrategy)
 	{
-		AutoCloseablePair<Exchange, Exchange> slowPipe = openPipedNoSharedMemory();
-		int bufsizeWithOverhead = SharedMemoryCommon.BUFSIZE_OVERHEAD + bufsize;
-		AutoCloseableByteBuffer buf = AutoCloseableByteBuffer.wrapNoCloseAction(ByteBuffer.allocateDirect(bufsizeWithOverhead));
-
-		// We can't create the input stream in the same thread as the output stream because they wait on each other.
-		AtomicReference<SharedMemoryInputStream> inRef = new AtomicReference<>();
-		AtomicReference<IOException> inCreationIOExceptionRef = new AtomicReference<>();
-		AtomicReference<RuntimeException> inCreationRuntimeExceptionRef = new AtomicReference<>();
-		Thread inCreatorThread = new Thread(() ->
-		{
-			try
-			{
-				inRef.set(new SharedMemoryInputStream(slowPipe.a(), buf, busyWaitTimeoutNanos));
-			} catch(IOException e)
-			{
-				inCreationIOExceptionRef.set(e);
-			} catch(RuntimeException e)
-			{
-				inCreationRuntimeExceptionRef.set(e);
-			}
-		});
-		inCreatorThread.setDaemon(true);
-		inCreatorThread.start();
-
-		SharedMemoryOutputStream out;
+		int bufsizeWithOverhead = SharedMemoryCommon.roundUpToCacheLines(SharedMemoryCommon.BUFSIZE_OVERHEAD + bufsize);
+		// Direct buffers aren't aligned to cache lines by themselves.
+		ByteBuffer buf = ByteBuffer.allocateDirect(bufsizeWithOverhead + SharedMemoryCommon.CACHE_LINE_SIZE - 1).alignedSlice(SharedMemoryCommon.CACHE_LINE_SIZE);
 		try
 		{
-			out = new SharedMemoryOutputStream(slowPipe.b(), buf, busyWaitTimeoutNanos);
+			return SharedMemoryCommon.openPipe(buf, waitStrategy);
 		} catch(IOException e)
 		{
-			// This means that the slowPipe failed, which should not be possible.
+			// The buffer has just been initialized, so this should not be possible.
 			throw new UncheckedIOException(e);
 		}
-
-		try
-		{
-			inCreatorThread.join();
-		} catch(InterruptedException e)
-		{
-			Thread.currentThread().interrupt();
-			return closeThenThrow(out, new RuntimeException("Interrupted during creation of shared memory pipe"));
-		}
-
-		SharedMemoryInputStream in = inRef.get();
-		if(in != null)
-			return Exchange.ofNoExtraCloseAction(in, out);
-
-		IOException inCreationIOException = inCreationIOExceptionRef.get();
-		if(inCreationIOException != null)
-			return closeThenThrow(out, new UncheckedIOException(inCreationIOException));
-
-		// this ref should not be null; if it is, that's also not a huge problem.
-		return closeThenThrow(out, new RuntimeException("Error while creating input sharedmem input stream", inCreationRuntimeExceptionRef.get()));
-	}
-	private static <R> R closeThenThrow(SharedMemoryOutputStream out, RuntimeException thrown)
-	{
-		try
-		{
-			out.close();
-		} catch(IOException e1)
-		{
-			thrown.addSuppressed(e1);
-		}
-
-		throw thrown;
 	}
 
 	public default Exchange wrapBuffered()
@@ -0,0 +1,18 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The operations the {@link MultiplexedExchangePool} needs from an input stream of one of its exchanges,
+ * regardless of whether the pool is windowed or not. See {@link MultiplexedExchangePoolConfig}.
+ */
+abstract class AbstractMultiplexedInputStream extends InputStream
+{
+	abstract void recordReceivedData(int len, InputStream rawIn) throws UnexpectedResponseException, IOException;
+
+	abstract void eofReached();
+	abstract void ioExceptionThrown();
+
+	abstract boolean closeWithoutSendingEOF();
+}
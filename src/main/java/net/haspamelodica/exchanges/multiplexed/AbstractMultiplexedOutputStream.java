@@ -0,0 +1,18 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The operations the {@link MultiplexedExchangePool} needs from an output stream of one of its exchanges,
+ * regardless of whether the pool is windowed or not. See {@link MultiplexedExchangePoolConfig}.
+ */
+abstract class AbstractMultiplexedOutputStream extends OutputStream
+{
+	abstract void recordReadyForReceiving(int len) throws UnexpectedResponseException, IOException;
+
+	abstract void eofReached();
+	abstract void ioExceptionThrown();
+
+	abstract boolean closeWithoutSendingEOF();
+}
@@ -0,0 +1,91 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * The state of a state machine, packed into a single <code>long</code>:
+ * the ordinal of the state kind in the upper 32 bits, and one <code>int</code> of data in the lower 32 bits.
+ * <p>
+ * Replaces an {@link java.util.concurrent.atomic.AtomicReference} of a state record, which allocated a new record for each transition.
+ * Update functions can get an additional <code>int</code> argument, so they don't need to capture local variables;
+ * a capturing lambda would be allocated anew on each call.
+ */
+final class AtomicPackedState
+{
+	private static final VarHandle VALUE;
+	static
+	{
+		try
+		{
+			VALUE = MethodHandles.lookup().findVarHandle(AtomicPackedState.class, "value", long.class);
+		} catch(ReflectiveOperationException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile long value;
+
+	AtomicPackedState(long initialValue)
+	{
+		this.value = initialValue;
+	}
+
+	long get()
+	{
+		return value;
+	}
+
+	long getAndSet(long newValue)
+	{
+		return (long) VALUE.getAndSet(this, newValue);
+	}
+
+	long compareAndExchange(long expectedValue, long newValue)
+	{
+		return (long) VALUE.compareAndExchange(this, expectedValue, newValue);
+	}
+
+	long getAndUpdate(LongUnaryOperator update)
+	{
+		for(;;)
+		{
+			long oldValue = value;
+			long newValue = update.applyAsLong(oldValue);
+			if(newValue == oldValue || VALUE.compareAndSet(this, oldValue, newValue))
+				return oldValue;
+		}
+	}
+
+	long getAndUpdate(int arg, UpdateFunction update)
+	{
+		for(;;)
+		{
+			long oldValue = value;
+			long newValue = update.apply(oldValue, arg);
+			if(newValue == oldValue || VALUE.compareAndSet(this, oldValue, newValue))
+				return oldValue;
+		}
+	}
+
+	static long pack(int kindOrdinal, int data)
+	{
+		return ((long) kindOrdinal << 32) | (data & 0xFFFF_FFFFL);
+	}
+	static int kindOrdinal(long packed)
+	{
+		return (int) (packed >>> 32);
+	}
+	static int data(long packed)
+	{
+		return (int) packed;
+	}
+
+	@FunctionalInterface
+	interface UpdateFunction
+	{
+		long apply(long state, int arg);
+	}
+}
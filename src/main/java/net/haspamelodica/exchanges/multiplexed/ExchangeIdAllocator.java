@@ -0,0 +1,42 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.util.Arrays;
+
+/**
+ * Allocates the IDs this side chooses for its exchanges, see {@link MultiplexedExchange}.
+ * Released IDs are reused before new ones, so IDs stay as small as the maximum number of exchanges existing at the same time.
+ * This keeps the other side's {@link ExchangeTable} small.
+ * <p>
+ * Not thread-safe; must be externally synchronized.
+ */
+class ExchangeIdAllocator
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[]	freeIds;
+	private int		freeIdsCount;
+	private int		nextUnusedId;
+
+	ExchangeIdAllocator()
+	{
+		this.freeIds = new int[INITIAL_CAPACITY];
+		this.nextUnusedId = 1;
+	}
+
+	int allocate()
+	{
+		if(freeIdsCount != 0)
+			return freeIds[-- freeIdsCount];
+
+		if(nextUnusedId < 0)
+			throw new IllegalStateException("ran out of exchange IDs");
+		return nextUnusedId ++;
+	}
+
+	void release(int id)
+	{
+		if(freeIdsCount == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+		freeIds[freeIdsCount ++] = id;
+	}
+}
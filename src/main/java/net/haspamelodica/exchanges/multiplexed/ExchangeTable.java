@@ -0,0 +1,72 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Maps the IDs the other side chose for its exchanges to the corresponding exchanges on this side, see {@link MultiplexedExchange}.
+ * The other side reuses IDs of released exchanges, so the table only grows up to the maximum number of exchanges existing at the same time.
+ * <p>
+ * {@link #get(int)} doesn't need any locking, so the reader thread can look up exchanges without contention.
+ * All other methods must be externally synchronized.
+ */
+class ExchangeTable
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Index 0 is unused because 0 is not a valid exchange ID.
+	private volatile AtomicReferenceArray<MultiplexedExchange> exchanges;
+
+	ExchangeTable()
+	{
+		this.exchanges = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	}
+
+	void put(int peerId, MultiplexedExchange exchange)
+	{
+		AtomicReferenceArray<MultiplexedExchange> exchanges = this.exchanges;
+		if(peerId >= exchanges.length())
+		{
+			AtomicReferenceArray<MultiplexedExchange> newExchanges = new AtomicReferenceArray<>(Math.max(exchanges.length() * 2, peerId + 1));
+			for(int i = 0; i < exchanges.length(); i ++)
+				newExchanges.set(i, exchanges.get(i));
+			this.exchanges = exchanges = newExchanges;
+		}
+		exchanges.set(peerId, exchange);
+	}
+
+	/**
+	 * Returns <code>null</code> if there is no exchange with the given ID.
+	 */
+	MultiplexedExchange get(int peerId)
+	{
+		AtomicReferenceArray<MultiplexedExchange> exchanges = this.exchanges;
+		if(peerId <= 0 || peerId >= exchanges.length())
+			return null;
+		return exchanges.get(peerId);
+	}
+
+	void remove(int peerId)
+	{
+		exchanges.set(peerId, null);
+	}
+
+	/**
+	 * Returns how many IDs the table has room for, including the unused index 0.
+	 */
+	int capacity()
+	{
+		return exchanges.length();
+	}
+
+	void forEach(Consumer<MultiplexedExchange> action)
+	{
+		AtomicReferenceArray<MultiplexedExchange> exchanges = this.exchanges;
+		for(int i = 1; i < exchanges.length(); i ++)
+		{
+			MultiplexedExchange exchange = exchanges.get(i);
+			if(exchange != null)
+				action.accept(exchange);
+		}
+	}
+}
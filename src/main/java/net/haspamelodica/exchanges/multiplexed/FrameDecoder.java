@@ -0,0 +1,123 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Objects;
+
+/**
+ * Reads frames of a {@link MultiplexedExchangePool} through a reusable buffer:
+ * each read from the raw exchange fetches as many bytes as are available,
+ * so usually several frame headers and small payloads are parsed out of the buffer without further reads.
+ * Reads bigger than the buffer bypass it if it is empty.
+ * <p>
+ * Not thread-safe. The byte order is big-endian, like {@link java.io.DataInputStream}.
+ */
+class FrameDecoder extends InputStream
+{
+	private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private final InputStream	in;
+	private final byte[]		buffer;
+	private int					pos;
+	private int					limit;
+
+	FrameDecoder(InputStream in, int bufferSize)
+	{
+		if(bufferSize < Integer.BYTES)
+			throw new IllegalArgumentException("buffer too small for an int: " + bufferSize);
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+	}
+
+	int readInt() throws EOFException, IOException
+	{
+		if(limit - pos < Integer.BYTES)
+			fillAtLeast(Integer.BYTES);
+		int value = (int) INT_HANDLE.get(buffer, pos);
+		pos += Integer.BYTES;
+		return value;
+	}
+
+	private void fillAtLeast(int minBuffered) throws EOFException, IOException
+	{
+		// move the remaining bytes to the start to make room
+		System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+		limit -= pos;
+		pos = 0;
+		while(limit < minBuffered)
+		{
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if(read < 0)
+				throw new EOFException();
+			limit += read;
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(pos == limit && !fill())
+			return -1;
+		return buffer[pos ++] & 0xFF;
+	}
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException
+	{
+		Objects.checkFromIndexSize(off, len, buf.length);
+		if(len == 0)
+			return 0;
+
+		if(pos == limit)
+		{
+			if(len >= buffer.length)
+				return in.read(buf, off, len);
+			if(!fill())
+				return -1;
+		}
+
+		int read = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, buf, off, read);
+		pos += read;
+		return read;
+	}
+
+	private boolean fill() throws IOException
+	{
+		pos = 0;
+		limit = 0;
+		int read = in.read(buffer, 0, buffer.length);
+		if(read < 0)
+			return false;
+		limit = read;
+		return true;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		if(n <= 0)
+			return 0;
+		if(pos == limit)
+			return in.skip(n);
+
+		int skipped = (int) Math.min(n, limit - pos);
+		pos += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return limit - pos + in.available();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
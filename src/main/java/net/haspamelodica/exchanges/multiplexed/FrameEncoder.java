@@ -0,0 +1,89 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes frames of a {@link MultiplexedExchangePool} into a reusable buffer,
+ * so a frame header and its payload reach the raw exchange in a single write and no allocation happens per frame.
+ * Payloads too big for the buffer are written directly from the caller's buffer.
+ * <p>
+ * Not thread-safe. The byte order is big-endian, like {@link java.io.DataOutputStream}.
+ */
+class FrameEncoder
+{
+	private static final VarHandle INT_HANDLE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private final OutputStream	out;
+	private final byte[]		buffer;
+	private int					count;
+
+	FrameEncoder(OutputStream out, int bufferSize)
+	{
+		if(bufferSize < 2 * Integer.BYTES)
+			throw new IllegalArgumentException("buffer too small for a frame header: " + bufferSize);
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+
+	void writeHeader(int exchangeIdWord, int len) throws IOException
+	{
+		ensureSpace(2 * Integer.BYTES);
+		INT_HANDLE.set(buffer, count, exchangeIdWord);
+		INT_HANDLE.set(buffer, count + Integer.BYTES, len);
+		count += 2 * Integer.BYTES;
+	}
+
+	void writeOpenFrame(int[] exchangeIds) throws IOException
+	{
+		writeHeader(0, -exchangeIds.length);
+		for(int exchangeId : exchangeIds)
+		{
+			ensureSpace(Integer.BYTES);
+			INT_HANDLE.set(buffer, count, exchangeId);
+			count += Integer.BYTES;
+		}
+	}
+
+	void writeDataFrame(int exchangeId, byte[] buf, int off, int len) throws IOException
+	{
+		writeHeader(exchangeId, len);
+		if(len > buffer.length - count)
+		{
+			flushBuffer();
+			if(len >= buffer.length)
+			{
+				// Copying wouldn't save any writes.
+				out.write(buf, off, len);
+				return;
+			}
+		}
+		System.arraycopy(buf, off, buffer, count, len);
+		count += len;
+	}
+
+	void flush() throws IOException
+	{
+		flushBuffer();
+		out.flush();
+	}
+
+	private void ensureSpace(int len) throws IOException
+	{
+		if(len > buffer.length - count)
+			flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if(count == 0)
+			return;
+		// Reset count first: if the write fails, the raw exchange is broken anyway.
+		int countToWrite = count;
+		count = 0;
+		out.write(buffer, 0, countToWrite);
+	}
+}
@@ -0,0 +1,305 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the frames of a {@link MultiplexedExchangePool} from a single dedicated thread;
+ * see {@link MultiplexedExchangePoolConfig#useFrameWriterThread()}.
+ * <p>
+ * Callers only enqueue frames into a lock-free queue. The writer thread encodes all frames currently available
+ * into the buffer of a {@link FrameEncoder} and only flushes once the queue is empty,
+ * so frames of many exchanges share a single flush of the raw exchange.
+ * If the maximum batching delay is positive, the writer thread waits up to that long after the first unflushed frame
+ * for more frames before flushing. It also flushes once that much time has passed if more frames keep coming,
+ * so no frame waits longer than that for its flush, except for the time needed to write the frames before it.
+ * <p>
+ * Control frames are fire-and-forget. Data frames reference the caller's buffer,
+ * so the caller of {@link #writeDataFrames(MultiplexedExchange, byte[], int, int, int)} waits until its frames
+ * have been written to the {@link FrameEncoder}, which doesn't keep a reference to the caller's buffer.
+ * The caller doesn't wait for the flush, so it can enqueue its next frames while the frames of other exchanges are written.
+ * <p>
+ * Frames taken from the queue aren't written in arrival order: control frames (open, ready and EOF frames) always go first,
+ * in the order they arrived, so they never wait behind a big data frame.
+ * Data frames are ordered by weighted fair queuing: each data frame gets a virtual finish time, which is the virtual time
+ * at which its exchange would be done sending it if the raw exchange were shared between all sending exchanges
+ * in proportion to their weights, and the data frame with the smallest virtual finish time is written first.
+ * All frames of a write are enqueued at once, so an exchange sending a big write stays backlogged
+ * and gets its share even while the raw exchange is saturated.
+ * Control frames of an exchange never have to be ordered after its data frames:
+ * an output EOF is only sent once the last write returned, which is after its data frames have been written.
+ */
+class FrameWriterThread
+{
+	private final MultiplexedExchangePool	multiplexer;
+	private final FrameEncoder				rawOut;
+	private final long						maxBatchingDelayNanos;
+
+	private final Queue<Frame>	queue;
+	private final Thread		thread;
+
+	private volatile boolean	writerParked;
+	private volatile boolean	shutDown;
+
+	// only accessed by the writer thread
+	private final Queue<Frame>			controlFrames;
+	private final PriorityQueue<Frame>	dataFrames;
+	private double						virtualTime;
+	private boolean						hasUnflushedFrames;
+	private long						firstUnflushedFrameNanos;
+
+	FrameWriterThread(MultiplexedExchangePool multiplexer, FrameEncoder rawOut, long maxBatchingDelayNanos)
+	{
+		this.multiplexer = multiplexer;
+		this.rawOut = rawOut;
+		this.maxBatchingDelayNanos = maxBatchingDelayNanos;
+
+		this.queue = new ConcurrentLinkedQueue<>();
+		this.thread = new Thread(this::writerThread, "Multiplexer Writer");
+		thread.setDaemon(true);
+
+		this.controlFrames = new ArrayDeque<>();
+		this.dataFrames = new PriorityQueue<>(Comparator.comparingDouble(frame -> frame.virtualFinishTime));
+
+		thread.start();
+	}
+
+	/**
+	 * @return <code>false</code> if the writer thread has shut down, <code>true</code> otherwise.
+	 */
+	boolean writeControlFrame(int exchangeIdWord, int len)
+	{
+		return enqueue(new Frame(exchangeIdWord, len, null, 0, 0, null, null, null));
+	}
+	/**
+	 * @return <code>false</code> if the writer thread has shut down, <code>true</code> otherwise.
+	 */
+	boolean writeOpenFrame(int[] exchangeIds)
+	{
+		return enqueue(new Frame(0, 0, null, 0, 0, exchangeIds, null, null));
+	}
+
+	/**
+	 * Splits the given bytes into data frames of at most the given size
+	 * and returns once all of them have been written to the raw exchange, which might not have been flushed yet.
+	 * Interrupts are deferred until then because the writer thread might still access the given buffer otherwise.
+	 *
+	 * @return <code>true</code> if all frames have been written, <code>false</code> if the writer thread shut down before that.
+	 */
+	boolean writeDataFrames(MultiplexedExchange exchange, byte[] buf, int off, int len, int maxFrameSize)
+	{
+		Frame[] frames = new Frame[(len - 1) / maxFrameSize + 1];
+		for(int i = 0; i < frames.length; i ++)
+		{
+			int frameOff = off + i * maxFrameSize;
+			int frameLen = Math.min(maxFrameSize, off + len - frameOff);
+			frames[i] = new Frame(exchange.id(), frameLen, buf, frameOff, frameLen, null, exchange, Thread.currentThread());
+			enqueue(frames[i]);
+		}
+
+		boolean interrupted = false;
+		boolean written = true;
+		for(Frame frame : frames)
+		{
+			while(frame.status == Frame.PENDING)
+			{
+				LockSupport.park(this);
+				if(Thread.interrupted())
+					interrupted = true;
+			}
+			if(frame.status != Frame.WRITTEN)
+				written = false;
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+
+		return written;
+	}
+
+	private boolean enqueue(Frame frame)
+	{
+		queue.add(frame);
+		// The writer thread sets shutDown before draining the queue, so this can't miss any frames:
+		// either the writer thread's drain sees our frame, or we see shutDown and drain ourselves.
+		if(shutDown)
+		{
+			failQueuedFrames();
+			return false;
+		}
+		if(writerParked)
+			LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Makes the writer thread exit as soon as possible. Frames which haven't been written yet are discarded.
+	 */
+	void shutDown()
+	{
+		shutDown = true;
+		LockSupport.unpark(thread);
+	}
+
+	private void writerThread()
+	{
+		try
+		{
+			while(!shutDown)
+			{
+				for(Frame frame; (frame = queue.poll()) != null;)
+					schedule(frame);
+
+				Frame frame = controlFrames.poll();
+				if(frame == null)
+					frame = dataFrames.poll();
+				if(frame != null)
+				{
+					writeFrame(frame);
+					// If frames keep coming, the queue might not get empty for a long time.
+					if(maxBatchingDelayNanos > 0 && System.nanoTime() - firstUnflushedFrameNanos >= maxBatchingDelayNanos)
+						flush();
+					continue;
+				}
+
+				// The queue is empty. Either wait for more frames or flush.
+				if(!hasUnflushedFrames)
+				{
+					parkUnlessFramesAvailable(-1);
+					continue;
+				}
+				long remainingDelay = firstUnflushedFrameNanos + maxBatchingDelayNanos - System.nanoTime();
+				if(remainingDelay > 0)
+				{
+					parkUnlessFramesAvailable(remainingDelay);
+					continue;
+				}
+
+				flush();
+			}
+		} catch(IOException e)
+		{
+			multiplexer.rawExchangeFailed(e);
+		} finally
+		{
+			shutDown = true;
+			for(Frame dataFrame; (dataFrame = dataFrames.poll()) != null;)
+				dataFrame.complete(Frame.FAILED);
+			controlFrames.clear();
+			failQueuedFrames();
+		}
+	}
+
+	private void schedule(Frame frame)
+	{
+		if(frame.exchange == null)
+		{
+			controlFrames.add(frame);
+			return;
+		}
+
+		// An exchange which didn't send for a while starts at the current virtual time instead of catching up.
+		MultiplexedExchange exchange = frame.exchange;
+		double virtualStartTime = Math.max(virtualTime, exchange.virtualFinishTime());
+		frame.virtualFinishTime = virtualStartTime + (double) frame.bufLen / exchange.getWeight();
+		exchange.setVirtualFinishTime(frame.virtualFinishTime);
+		dataFrames.add(frame);
+	}
+
+	private void writeFrame(Frame frame) throws IOException
+	{
+		if(!hasUnflushedFrames)
+		{
+			hasUnflushedFrames = true;
+			firstUnflushedFrameNanos = System.nanoTime();
+		}
+
+		if(frame.buf != null)
+		{
+			virtualTime = frame.virtualFinishTime;
+			boolean written = false;
+			try
+			{
+				rawOut.writeDataFrame(frame.exchangeIdWord, frame.buf, frame.off, frame.bufLen);
+				written = true;
+			} finally
+			{
+				frame.complete(written ? Frame.WRITTEN : Frame.FAILED);
+			}
+		} else if(frame.openedExchangeIds != null)
+			rawOut.writeOpenFrame(frame.openedExchangeIds);
+		else
+			rawOut.writeHeader(frame.exchangeIdWord, frame.len);
+	}
+
+	private void flush() throws IOException
+	{
+		rawOut.flush();
+		hasUnflushedFrames = false;
+	}
+
+	/**
+	 * A negative timeout means no timeout.
+	 */
+	private void parkUnlessFramesAvailable(long timeoutNanos)
+	{
+		writerParked = true;
+		// Re-check after setting writerParked; see enqueue.
+		if(queue.isEmpty() && !shutDown)
+			if(timeoutNanos < 0)
+				LockSupport.park(this);
+			else
+				LockSupport.parkNanos(this, timeoutNanos);
+		writerParked = false;
+	}
+
+	private void failQueuedFrames()
+	{
+		for(Frame frame; (frame = queue.poll()) != null;)
+			frame.complete(Frame.FAILED);
+	}
+
+	private static class Frame
+	{
+		private static final int	PENDING	= 0;
+		private static final int	WRITTEN	= 1;
+		private static final int	FAILED	= 2;
+
+		private final int					exchangeIdWord;
+		private final int					len;
+		private final byte[]				buf;
+		private final int					off;
+		private final int					bufLen;
+		private final int[]					openedExchangeIds;
+		private final MultiplexedExchange	exchange;
+		private final Thread				waitingThread;
+
+		// only accessed by the writer thread
+		private double virtualFinishTime;
+
+		private volatile int status;
+
+		private Frame(int exchangeIdWord, int len, byte[] buf, int off, int bufLen, int[] openedExchangeIds, MultiplexedExchange exchange, Thread waitingThread)
+		{
+			this.exchangeIdWord = exchangeIdWord;
+			this.len = len;
+			this.buf = buf;
+			this.off = off;
+			this.bufLen = bufLen;
+			this.openedExchangeIds = openedExchangeIds;
+			this.exchange = exchange;
+			this.waitingThread = waitingThread;
+		}
+
+		private void complete(int status)
+		{
+			this.status = status;
+			if(waitingThread != null)
+				LockSupport.unpark(waitingThread);
+		}
+	}
+}
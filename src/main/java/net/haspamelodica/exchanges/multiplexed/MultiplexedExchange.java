@@ -1,30 +1,87 @@
 package net.haspamelodica.exchanges.multiplexed;
 
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.haspamelodica.exchanges.Exchange;
 
-public class MultiplexedExchange
+/**
+ * Each side chooses its own ID for an exchange; each side tags the frames it sends with the ID it chose.
+ * So, {@link #id()} is used to tag outgoing frames, and {@link #peerId()} identifies incoming frames.
+ * The peer ID is only known once the other side opened the corresponding exchange.
+ * <p>
+ * The ID and the table entry are freed independently of each other, each after two of the four closes:
+ * Once both streams have been closed on this side, the EOF frames tagged with our ID have been sent, and the ID becomes free for reuse,
+ * even if the other side still has its streams open: it processes these EOF frames before the frame opening the next exchange with that ID.
+ * Once both streams have been closed on the other side, it won't send any more frames tagged with the peer ID,
+ * and the exchange is removed from the {@link ExchangeTable}, even if this side still has its streams open.
+ * <p>
+ * The weight of an exchange determines its share of the raw exchange if the frame writer thread is used;
+ * see {@link MultiplexedExchangePoolConfig#useFrameWriterThread()} and {@link FrameWriterThread}.
+ */
+public class MultiplexedExchange implements Exchange
 {
-	private final int						id;
-	private final MultiplexedInputStream	in;
-	private final MultiplexedOutputStream	out;
+	public static final int DEFAULT_WEIGHT = 1;
 
-	MultiplexedExchange(MultiplexedExchangePool multiplexer, int id)
+	private static final int	LOCAL_INPUT_CLOSED	= 1 << 0;
+	private static final int	LOCAL_OUTPUT_CLOSED	= 1 << 1;
+	private static final int	PEER_INPUT_CLOSED	= 1 << 2;
+	private static final int	PEER_OUTPUT_CLOSED	= 1 << 3;
+	private static final int	LOCAL_CLOSED		= LOCAL_INPUT_CLOSED | LOCAL_OUTPUT_CLOSED;
+	private static final int	PEER_CLOSED			= PEER_INPUT_CLOSED | PEER_OUTPUT_CLOSED;
+
+	private final MultiplexedExchangePool			multiplexer;
+	private final int								id;
+	private final AbstractMultiplexedInputStream	in;
+	private final AbstractMultiplexedOutputStream	out;
+
+	private final AtomicInteger closedStreams;
+
+	private volatile int weight;
+
+	// only accessed by the frame writer thread
+	private double virtualFinishTime;
+
+	// guarded by the state of the multiplexer
+	private int		peerId;
+	private boolean	openSent;
+
+	/**
+	 * Pass 0 as peer ID if the other side hasn't opened the corresponding exchange yet.
+	 */
+	MultiplexedExchange(MultiplexedExchangePool multiplexer, int id, int peerId)
 	{
-		if(id < 0)
-			throw new IllegalArgumentException("negative ID: " + id);
+		if(id <= 0)
+			throw new IllegalArgumentException("non-positive ID: " + id);
+		if(peerId < 0)
+			throw new IllegalArgumentException("negative peer ID: " + peerId);
+		this.multiplexer = multiplexer;
 		this.id = id;
-		this.in = new MultiplexedInputStream(multiplexer, id);
-		this.out = new MultiplexedOutputStream(multiplexer, id);
+		this.peerId = peerId;
+		MultiplexedExchangePoolConfig config = multiplexer.config();
+		if(config.isWindowed())
+		{
+			this.in = new WindowedMultiplexedInputStream(multiplexer, this, config.receiveWindow());
+			this.out = new WindowedMultiplexedOutputStream(multiplexer, this, config.receiveWindow());
+		} else
+		{
+			this.in = new MultiplexedInputStream(multiplexer, this);
+			this.out = new MultiplexedOutputStream(multiplexer, this);
+		}
+		this.closedStreams = new AtomicInteger();
+		this.weight = DEFAULT_WEIGHT;
 	}
 
 	private MultiplexedExchange()
 	{
+		this.multiplexer = null;
 		this.id = -1;
+		this.peerId = -1;
 		this.in = null;
 		this.out = null;
+		this.closedStreams = null;
 	}
 	static MultiplexedExchange createSentry()
 	{
@@ -39,17 +96,78 @@ public class MultiplexedExchange
 	{
 		return id;
 	}
+	int peerId()
+	{
+		return peerId;
+	}
+	void setPeerId(int peerId)
+	{
+		this.peerId = peerId;
+	}
+	boolean isPaired()
+	{
+		return peerId != 0;
+	}
+	boolean isOpenSent()
+	{
+		return openSent;
+	}
+	void setOpenSent()
+	{
+		this.openSent = true;
+	}
 
-	Exchange asExchange()
+	@Override
+	public InputStream in()
+	{
+		return in;
+	}
+	@Override
+	public OutputStream out()
 	{
-		// No need for extra close action: if we get closed, all we do is close in and out.
-		return Exchange.ofNoExtraCloseAction(in, out);
+		return out;
+	}
+
+	public int getWeight()
+	{
+		return weight;
+	}
+	/**
+	 * Exchanges with a higher weight get a proportionally bigger share of the raw exchange while several exchanges are sending.
+	 * Can be changed at any time; the new weight applies to frames sent afterwards.
+	 * Only the frame writer thread takes weights into account, so without it, only {@link #DEFAULT_WEIGHT} is allowed.
+	 */
+	public void setWeight(int weight)
+	{
+		checkWeight(weight, multiplexer.config());
+		this.weight = weight;
+	}
+	static void checkWeight(int weight, MultiplexedExchangePoolConfig config)
+	{
+		if(weight <= 0)
+			throw new IllegalArgumentException("non-positive weight: " + weight);
+		if(weight != DEFAULT_WEIGHT && !config.useFrameWriterThread())
+			throw new IllegalArgumentException("weight " + weight + " has no effect without the frame writer thread");
+	}
+
+	double virtualFinishTime()
+	{
+		return virtualFinishTime;
+	}
+	void setVirtualFinishTime(double virtualFinishTime)
+	{
+		this.virtualFinishTime = virtualFinishTime;
 	}
 
 	void outEofReached()
 	{
 		out.eofReached();
 	}
+	void peerInputClosed()
+	{
+		outEofReached();
+		streamClosed(PEER_INPUT_CLOSED);
+	}
 
 	void recordReadyForReceiving(int len) throws UnexpectedResponseException, IOException
 	{
@@ -60,8 +178,13 @@ public class MultiplexedExchange
 	{
 		in.eofReached();
 	}
+	void peerOutputClosed()
+	{
+		inEofReached();
+		streamClosed(PEER_OUTPUT_CLOSED);
+	}
 
-	void recordReceivedData(int len, DataInputStream rawIn) throws UnexpectedResponseException, IOException
+	void recordReceivedData(int len, InputStream rawIn) throws UnexpectedResponseException, IOException
 	{
 		in.recordReceivedData(len, rawIn);
 	}
@@ -83,4 +206,35 @@ public class MultiplexedExchange
 		in.closeWithoutSendingEOF();
 		out.closeWithoutSendingEOF();
 	}
+
+	void localInputClosed()
+	{
+		streamClosed(LOCAL_INPUT_CLOSED);
+	}
+	void localOutputClosed()
+	{
+		streamClosed(LOCAL_OUTPUT_CLOSED);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			in.close();
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	private void streamClosed(int stream)
+	{
+		int oldClosedStreams = closedStreams.getAndAccumulate(stream, (closed, newlyClosed) -> closed | newlyClosed);
+		int newClosedStreams = oldClosedStreams | stream;
+		if((oldClosedStreams & LOCAL_CLOSED) != LOCAL_CLOSED && (newClosedStreams & LOCAL_CLOSED) == LOCAL_CLOSED)
+			multiplexer.releaseId(this);
+		if((oldClosedStreams & PEER_CLOSED) != PEER_CLOSED && (newClosedStreams & PEER_CLOSED) == PEER_CLOSED)
+			multiplexer.unregisterExchange(this);
+	}
 }
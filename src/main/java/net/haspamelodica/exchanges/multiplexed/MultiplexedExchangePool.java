@@ -1,14 +1,15 @@
 package net.haspamelodica.exchanges.multiplexed;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import net.haspamelodica.exchanges.Exchange;
@@ -24,48 +25,136 @@ import net.haspamelodica.exchanges.util.ClosedException;
  * The output stream with ID 0 always exists, but streams with higher IDs only exist as soon as {@link #getOut(int)} is first called for that ID.
  * <p>
  * A write only finishes after a corresponding read capable of handling all written bytes has been called on the corresponding input stream.
+ * This is not true if the pool is windowed (see {@link MultiplexedExchangePoolConfig}):
+ * then, a write only waits if the other side has fallen behind by more than the receive window.
  * <p>
  * An output stream can only be closed if the corresponding input stream exists. (Unlike output stream 0, input stream 0 is not guaranteed to exist.)
  * Since a write only finishes after a corresponding read, this can only become a problem if no bytes are written to a stream.
+ * <p>
+ * If {@link MultiplexedExchangePoolConfig#useFrameWriterThread()} is set, all frames are written by a dedicated writer thread,
+ * which coalesces the flushes of frames sent concurrently by different exchanges.
+ * That thread also sends control frames before data frames and orders the data frames of different exchanges
+ * according to their weights; see {@link MultiplexedExchange#setWeight(int)}. Without it, weights other than the default are rejected.
+ * Frames which haven't been written yet when the pool gets closed are discarded.
+ * <p>
+ * Each side chooses the IDs for its exchanges on its own, tells the other side in the frame opening the exchange,
+ * and tags all frames it sends for that exchange with that ID. So, the IDs chosen by the two sides never collide,
+ * and a side reuses an ID once it closed both streams of the exchange using it; see {@link MultiplexedExchange}.
+ * The n-th exchange opened by one side belongs to the n-th exchange opened by the other side.
+ * If the other side opens an exchange first, this side creates the corresponding exchange immediately,
+ * so frames for it can be received before this side opens it.
+ * <p>
+ * Normally, {@link #createNewExchange()} opens an exchange and waits for the other side to open the corresponding one,
+ * which costs a round trip over the raw exchange. If zero-RTT open is enabled (see {@link MultiplexedExchangePoolConfig}),
+ * createNewExchange returns as soon as the open frame has been sent, and the exchange can be used right away.
+ * If the reservoir is enabled,
+ * a background thread keeps a number of exchanges opened in advance, using a single frame to open several exchanges at once,
+ * and createNewExchange hands those out immediately. This only helps if the other side uses a reservoir as well.
  */
 public class MultiplexedExchangePool implements ExchangePool
 {
 	static final boolean DEBUG = false;
 
-	private static final int SIGN_BIT = Integer.MIN_VALUE;
+	private static final int	SIGN_BIT			= Integer.MIN_VALUE;
+	private static final int	FRAME_BUFFER_SIZE	= 8192;
+
+	private final MultiplexedExchangePoolConfig config;
 
 	private final Exchange			rawExchange;
-	private final DataInputStream	rawIn;
+	private final FrameDecoder		rawIn;
 	private final Object			rawOutLock;
-	private final DataOutputStream	rawOut;
+	private final FrameEncoder		rawOut;
+	private final FrameWriterThread	frameWriter;
+
+	private final ReceiveBufferPool receiveBufferPool;
+
+	private final Thread				readerThread;
+	private final ExchangeTable			exchanges;
+	private final ExchangeIdAllocator	exchangeIds;
 
-	private final Thread										readerThread;
-	private final AtomicReference<List<MultiplexedExchange>>	exchangesById;
+	private final Object								openLock;
+	private final Queue<MultiplexedExchange>			awaitingPeerOpen;
+	private final Queue<MultiplexedExchange>			peerOpened;
+	private final BlockingQueue<MultiplexedExchange>	readyExchanges;
 
-	private final BlockingQueue<MultiplexedExchange> readyExchanges;
+	private final AtomicInteger	reservoirLevel;
+	private final AtomicLong	reservoirHitCount;
+	private final AtomicLong	reservoirMissCount;
+	private final Semaphore		reservoirRefillSemaphore;
+	private final Thread		reservoirRefillerThread;
 
 	private final AtomicReference<State>		state;
 	private final AtomicReference<IOException>	ioException;
 
 	public MultiplexedExchangePool(Exchange rawExchange)
 	{
+		this(rawExchange, MultiplexedExchangePoolConfig.DEFAULT);
+	}
+	public MultiplexedExchangePool(Exchange rawExchange, MultiplexedExchangePoolConfig config)
+	{
+		this.config = config;
+
 		this.rawExchange = rawExchange;
-		this.rawIn = new DataInputStream(rawExchange.in());
+		this.rawIn = new FrameDecoder(rawExchange.in(), FRAME_BUFFER_SIZE);
 		this.rawOutLock = new Object();
-		this.rawOut = new DataOutputStream(rawExchange.out());
+		if(config.useFrameWriterThread())
+		{
+			this.rawOut = null;
+			this.frameWriter = new FrameWriterThread(this, new FrameEncoder(rawExchange.out(), FRAME_BUFFER_SIZE), config.maxBatchingDelayNanos());
+		} else
+		{
+			this.rawOut = new FrameEncoder(rawExchange.out(), FRAME_BUFFER_SIZE);
+			this.frameWriter = null;
+		}
+
+		if(config.isWindowed())
+			this.receiveBufferPool = new ReceiveBufferPool(Math.min(ReceiveBufferPool.DEFAULT_CHUNK_SIZE, config.receiveWindow()), config.receiveBufferBudget());
+		else
+			this.receiveBufferPool = null;
 
 		this.readerThread = new Thread(this::readerThread, "Multiplexer Reader");
-		this.exchangesById = new AtomicReference<>(new ArrayList<>());
+		this.exchanges = new ExchangeTable();
+		this.exchangeIds = new ExchangeIdAllocator();
 		readerThread.setDaemon(true);
 
+		this.openLock = new Object();
+		this.awaitingPeerOpen = new ArrayDeque<>();
+		this.peerOpened = new ArrayDeque<>();
 		this.readyExchanges = new LinkedBlockingQueue<>();
 
+		this.reservoirLevel = new AtomicInteger();
+		this.reservoirHitCount = new AtomicLong();
+		this.reservoirMissCount = new AtomicLong();
+		this.reservoirRefillSemaphore = new Semaphore(0);
+		if(config.hasReservoir())
+		{
+			this.reservoirRefillerThread = new Thread(this::reservoirRefillerThread, "Multiplexer Reservoir Refiller");
+			reservoirRefillerThread.setDaemon(true);
+		} else
+			this.reservoirRefillerThread = null;
+
 		this.state = new AtomicReference<>(State.OPEN);
 		this.ioException = new AtomicReference<>();
 
 		readerThread.start();
+		if(reservoirRefillerThread != null)
+			reservoirRefillerThread.start();
 	}
 
+	MultiplexedExchangePoolConfig config()
+	{
+		return config;
+	}
+
+	ExchangeTable exchanges()
+	{
+		return exchanges;
+	}
+
+	ReceiveBufferPool receiveBufferPool()
+	{
+		return receiveBufferPool;
+	}
 
 	/**
 	 * readerThread must never wait for a write, otherwise deadlocks can occur
@@ -74,90 +163,172 @@ public class MultiplexedExchangePool implements ExchangePool
 	 * <p>
 	 * readerThread synchronizes on {@link #state}.
 	 * Because of this, none of the writeXYZ methods must be called while this lock is held.
+	 * For the same reason, readerThread must never synchronize on {@link #openLock}.
 	 */
 	private void readerThread()
 	{
-		List<MultiplexedExchange> exchangesById = this.exchangesById.get();
-
 		try
 		{
 			while(state.get() == State.OPEN)
 			{
 				int exchangeId = rawIn.readInt();
-				if(exchangeId == 0)
-					// make sure we aren't modifying exchangesById while close() runs
-					synchronized(state)
-					{
-						if(state.get() != State.OPEN)
-							break;
-						MultiplexedExchange exchange = new MultiplexedExchange(this, exchangesById.size() + 1);
-						exchangesById.add(exchange);
-						readyExchanges.add(exchange);
-						continue;
-					}
-
 				int len = rawIn.readInt();
 
-				if((exchangeId & SIGN_BIT) != 0)
-					recordReadyForReceiving(getExchange(exchangesById, exchangeId & ~SIGN_BIT), len);
+				if(exchangeId == 0)
+					recordOpenFrame(len);
+				else if((exchangeId & SIGN_BIT) != 0)
+					recordReadyForReceiving(getExchange(exchangeId & ~SIGN_BIT), len);
 				else
-					recordReceivedData(getExchange(exchangesById, exchangeId), len);
+					recordReceivedData(getExchange(exchangeId), len);
 			}
 		} catch(IOException e)
 		{
-			// synchronized because we need to modify ioException conditionally as well
-			synchronized(state)
+			rawExchangeFailed(e);
+		}
+	}
+
+	/**
+	 * Called by the reader thread and the frame writer thread if reading from or writing to the raw exchange fails.
+	 */
+	void rawExchangeFailed(IOException e)
+	{
+		// synchronized because we need to modify ioException conditionally as well
+		synchronized(state)
+		{
+			// only if the multiplexer was open, exceptions (including EOF) have an effect
+			if(state.get() == State.OPEN)
 			{
-				// only if the multiplexer was open, exceptions (including EOF) have an effect
-				if(state.get() == State.OPEN)
+				if(e instanceof EOFException)
 				{
-					if(e instanceof EOFException)
-					{
-						state.set(State.GLOBAL_EOF);
-						exchangesById.forEach(MultiplexedExchange::eofReached);
-					} else
-					{
-						ioException.set(e);
-						state.set(State.IO_EXCEPTION);
-						exchangesById.forEach(MultiplexedExchange::ioExceptionThrown);
-					}
+					state.set(State.GLOBAL_EOF);
+					exchanges.forEach(MultiplexedExchange::eofReached);
+					awaitingPeerOpen.forEach(MultiplexedExchange::eofReached);
+				} else
+				{
+					ioException.set(e);
+					state.set(State.IO_EXCEPTION);
+					exchanges.forEach(MultiplexedExchange::ioExceptionThrown);
+					awaitingPeerOpen.forEach(MultiplexedExchange::ioExceptionThrown);
 				}
+				// notify createNewExchange this multiplexer isn't open anymore; see close()
+				readyExchanges.add(MultiplexedExchange.createSentry());
 			}
 		}
+		if(frameWriter != null)
+			frameWriter.shutDown();
 	}
 
-	private MultiplexedExchange getExchange(List<MultiplexedExchange> exchangesById, int exchangeId) throws UnexpectedResponseException
+	private MultiplexedExchange getExchange(int peerId) throws UnexpectedResponseException
 	{
-		if(exchangeId <= 0 || exchangeId > exchangesById.size())
-			throw new UnexpectedResponseException("Illegal exchange ID: " + exchangeId);
+		MultiplexedExchange exchange = exchanges.get(peerId);
+		if(exchange == null)
+			throw new UnexpectedResponseException("Illegal exchange ID: " + peerId);
+		return exchange;
+	}
+
+	private void recordOpenFrame(int len) throws UnexpectedResponseException, IOException
+	{
+		if(len > 0)
+		{
+			recordPeerOpened(len);
+			return;
+		}
 
-		return exchangesById.get(exchangeId - 1);
+		// An open frame for multiple exchanges; see writeNewExchanges.
+		int count = -len;
+		if(count < 2)
+			throw new UnexpectedResponseException("Illegal open frame exchange count: " + count);
+		for(int i = 0; i < count; i ++)
+			recordPeerOpened(rawIn.readInt());
+	}
+
+	private void recordPeerOpened(int peerId) throws UnexpectedResponseException
+	{
+		if(DEBUG)
+			debug(-1, null, "Receiving new stream with peer ID " + peerId);
+		if(peerId <= 0)
+			throw new UnexpectedResponseException("Illegal peer exchange ID: " + peerId);
+
+		// make sure we aren't modifying exchanges while close() runs
+		synchronized(state)
+		{
+			if(state.get() != State.OPEN)
+				return;
+
+			// The other side only reuses an ID after it sent both EOF frames for the exchange previously using it.
+			if(exchanges.get(peerId) != null)
+				throw new UnexpectedResponseException("Peer exchange ID already in use: " + peerId);
+
+			MultiplexedExchange exchange = awaitingPeerOpen.poll();
+			if(exchange == null)
+			{
+				// We haven't opened the corresponding exchange yet; the next call to openExchanges will.
+				// Create it anyway: the other side might already be sending frames for it.
+				exchange = new MultiplexedExchange(this, exchangeIds.allocate(), peerId);
+				exchanges.put(peerId, exchange);
+				peerOpened.add(exchange);
+				return;
+			}
+
+			exchange.setPeerId(peerId);
+			exchanges.put(peerId, exchange);
+			// If our open frame hasn't been sent yet, the thread sending it will make the exchange ready.
+			// With zero-RTT open, that thread already did so.
+			if(exchange.isOpenSent() && !config.zeroRttOpen())
+				readyExchanges.add(exchange);
+		}
 	}
 
 	private void recordReadyForReceiving(MultiplexedExchange exchange, int len) throws UnexpectedResponseException, IOException
 	{
-		debugOut(exchange.id(), "Receiving " + (len != 0 ? len + " bytes ready" : "EOF"));
+		if(DEBUG)
+			debugOut(exchange.id(), "Receiving " + (len != 0 ? len + " bytes ready" : "EOF"));
 		if(len == 0)
-			exchange.outEofReached();
+			exchange.peerInputClosed();
 		else
 			exchange.recordReadyForReceiving(len);
 	}
 	private void recordReceivedData(MultiplexedExchange exchange, int len) throws UnexpectedResponseException, IOException
 	{
-		debugIn(exchange.id(), "Receiving " + (len != 0 ? len + " bytes" : "EOF"));
+		if(DEBUG)
+			debugIn(exchange.id(), "Receiving " + (len != 0 ? len + " bytes" : "EOF"));
 		if(len == 0)
-			exchange.inEofReached();
+			exchange.peerOutputClosed();
 		else
 			exchange.recordReceivedData(len, rawIn);
 	}
 
+	/**
+	 * Creates a new exchange with the given weight; see {@link MultiplexedExchange#setWeight(int)}.
+	 */
+	public MultiplexedExchange createNewExchange(int weight) throws IOException
+	{
+		MultiplexedExchange.checkWeight(weight, config);
+		MultiplexedExchange exchange = createNewExchange();
+		exchange.setWeight(weight);
+		return exchange;
+	}
+
 	@Override
-	public Exchange createNewExchange() throws IOException
+	public MultiplexedExchange createNewExchange() throws IOException
 	{
 		if(state.get() != State.OPEN)
-			return throwCreateNewExchangeNotOpen();
+			return throwNotOpen();
 
-		writeNewExchangeReady();
+		if(config.hasReservoir())
+		{
+			MultiplexedExchange exchange = readyExchanges.poll();
+			if(exchange != null)
+			{
+				reservoirHitCount.incrementAndGet();
+				return handOut(exchange);
+			}
+			reservoirMissCount.incrementAndGet();
+			// Not waiting for the refill: opening an exchange ourselves is just as fast,
+			// and this exchange will count towards the reservoir as well.
+		}
+
+		openExchanges(1);
 
 		MultiplexedExchange exchange;
 		try
@@ -172,23 +343,131 @@ public class MultiplexedExchangePool implements ExchangePool
 			Thread.currentThread().interrupt();
 			throw new IOException("Interrupted while creating new exchange", e);
 		}
+		return handOut(exchange);
+	}
+
+	private MultiplexedExchange handOut(MultiplexedExchange exchange) throws IOException
+	{
+		if(exchange.isSentry())
+		{
+			// exchange.isSentry() means the multiplexer shut down (closed, IOException, or EOF).
+			// This will happen if the multiplexer is closed while createNewExchange
+			// is after the check at the start, but before the other side responded.
+			// Forward the information to other threads being in the same situation by re-enqueuing the sentry exchange.
+			readyExchanges.add(exchange);
+			return throwNotOpen();
+		}
+
+		int reservoirLevel = this.reservoirLevel.decrementAndGet();
+		if(config.hasReservoir() && reservoirLevel < config.reservoirRefillThreshold())
+			reservoirRefillSemaphore.release();
+		return exchange;
+	}
+
+	/**
+	 * Sends open frames for the given number of new exchanges.
+	 * Each of them will be put into {@link #readyExchanges} once the other side opened the corresponding exchange,
+	 * or, with zero-RTT open, as soon as the open frame has been sent.
+	 */
+	private void openExchanges(int count) throws IOException
+	{
+		// Holding openLock while sending makes sure our open frames are sent in the order of awaitingPeerOpen.
+		synchronized(openLock)
+		{
+			int[] ids = new int[count];
+			MultiplexedExchange[] openedExchanges = new MultiplexedExchange[count];
+			synchronized(state)
+			{
+				if(state.get() != State.OPEN)
+					throwNotOpen();
+
+				for(int i = 0; i < count; i ++)
+				{
+					// If the other side already opened the corresponding exchange, the reader thread created it already.
+					MultiplexedExchange exchange = peerOpened.poll();
+					if(exchange == null)
+					{
+						exchange = new MultiplexedExchange(this, exchangeIds.allocate(), 0);
+						awaitingPeerOpen.add(exchange);
+					}
+					ids[i] = exchange.id();
+					openedExchanges[i] = exchange;
+				}
+				reservoirLevel.addAndGet(count);
+			}
+
+			writeNewExchanges(ids);
+
+			synchronized(state)
+			{
+				// Only now that our open frames are sent, the other side can accept frames for these exchanges.
+				for(MultiplexedExchange exchange : openedExchanges)
+				{
+					exchange.setOpenSent();
+					if(exchange.isPaired() || config.zeroRttOpen())
+						readyExchanges.add(exchange);
+				}
+			}
+		}
+	}
 
-		if(!exchange.isSentry())
-			return exchange.asExchange();
+	private void reservoirRefillerThread()
+	{
+		try
+		{
+			for(;;)
+			{
+				int missing = config.reservoirDepth() - reservoirLevel.get();
+				if(missing > 0)
+					openExchanges(missing);
+				reservoirRefillSemaphore.acquire();
+				reservoirRefillSemaphore.drainPermits();
+			}
+		} catch(InterruptedException | IOException e)
+		{
+			// The multiplexer shut down. Threads waiting in createNewExchange get notified by close or the reader thread.
+		}
+	}
 
-		// exchange.isSentry() means the multiplexer shut down (closed, IOException, or EOF).
-		// This will happen if the multiplexer is closed while createNewExchange
-		// is after the synchronized block at the start, but before the other side responded.
-		// Forward the information to other threads being in the same situation by re-enqueuing the sentry exchange.
-		readyExchanges.add(exchange);
-		return throwCreateNewExchangeNotOpen();
+	/**
+	 * Returns how often {@link #createNewExchange()} could hand out a pre-opened exchange immediately.
+	 * Always 0 if the reservoir is disabled; see {@link MultiplexedExchangePoolConfig}.
+	 */
+	public long getReservoirHitCount()
+	{
+		return reservoirHitCount.get();
+	}
+	/**
+	 * Returns how often {@link #createNewExchange()} found the reservoir empty.
+	 * Always 0 if the reservoir is disabled; see {@link MultiplexedExchangePoolConfig}.
+	 */
+	public long getReservoirMissCount()
+	{
+		return reservoirMissCount.get();
+	}
+	/**
+	 * Returns the number of exchanges this side has opened, but not handed out yet.
+	 * Some of them might still be waiting for the other side to open the corresponding exchange.
+	 */
+	public int getReservoirLevel()
+	{
+		return reservoirLevel.get();
+	}
+
+	/**
+	 * Returns the number of received bytes which haven't been read yet, summed over all exchanges.
+	 * Always 0 if the pool isn't windowed; see {@link MultiplexedExchangePoolConfig}.
+	 */
+	public long getBufferedReceivedBytes()
+	{
+		return receiveBufferPool != null ? receiveBufferPool.bufferedBytes() : 0;
 	}
 
-	private Exchange throwCreateNewExchangeNotOpen() throws EOFException, UnexpectedResponseException, ClosedException, IOException
+	private <R> R throwNotOpen() throws EOFException, UnexpectedResponseException, ClosedException, IOException
 	{
 		return switch(state.get())
 		{
-			case OPEN -> throw new IllegalStateException("Got null exchange, but multiplexer still open");
+			case OPEN -> throw new IllegalStateException("Got sentry exchange or writer shut down, but multiplexer still open");
 			case GLOBAL_EOF -> throw new EOFException();
 			case IO_EXCEPTION -> throwIOException();
 			case CLOSED -> throw new IOException("Closed");
@@ -196,14 +475,54 @@ public class MultiplexedExchangePool implements ExchangePool
 	}
 
 	/**
+	 * Called once both streams of the given exchange have been closed on this side.
+	 */
+	void releaseId(MultiplexedExchange exchange)
+	{
+		synchronized(state)
+		{
+			// If we aren't open anymore, IDs won't be reused anyway.
+			if(state.get() == State.OPEN)
+				exchangeIds.release(exchange.id());
+		}
+	}
+	/**
+	 * Called by the reader thread once both streams of the given exchange have been closed on the other side.
+	 */
+	void unregisterExchange(MultiplexedExchange exchange)
+	{
+		synchronized(state)
+		{
+			if(state.get() == State.OPEN)
+				exchanges.remove(exchange.peerId());
+		}
+	}
+
+	/**
+	 * Opening a single exchange is the frame <code>(0, id)</code>;
+	 * opening multiple exchanges at once is <code>(0, -count)</code> followed by all IDs.
+	 * <p>
 	 * This must not be called while the caller holds {@link #state}; see {@link #readerThread}.
 	 */
-	void writeNewExchangeReady() throws IOException
+	private void writeNewExchanges(int[] exchangeIds) throws IOException
 	{
+		if(DEBUG)
+			debug(-1, null, "Sending new streams " + Arrays.toString(exchangeIds));
+		if(exchangeIds.length == 1)
+		{
+			writeControlFrame(0, exchangeIds[0]);
+			return;
+		}
+
+		if(frameWriter != null)
+		{
+			if(!frameWriter.writeOpenFrame(exchangeIds))
+				throwNotOpen();
+			return;
+		}
 		synchronized(rawOutLock)
 		{
-			debug(-1, null, "Sending new stream ready");
-			rawOut.writeInt(0);
+			rawOut.writeOpenFrame(exchangeIds);
 			rawOut.flush();
 		}
 	}
@@ -212,26 +531,37 @@ public class MultiplexedExchangePool implements ExchangePool
 	 */
 	void writeReadyForReceiving(int exchangeId, int len) throws IOException
 	{
-		synchronized(rawOutLock)
-		{
+		if(DEBUG)
 			debugIn(exchangeId, "Sending " + len + " bytes ready");
-			rawOut.writeInt(exchangeId | SIGN_BIT);
-			rawOut.writeInt(len);
-			rawOut.flush();
-		}
+		writeControlFrame(exchangeId | SIGN_BIT, len);
 	}
 	/**
+	 * Sends the given bytes in frames of at most the maximum frame size; see {@link MultiplexedExchangePoolConfig}.
+	 * <p>
 	 * This must not be called while the caller holds {@link #state}; see {@link #readerThread}.
 	 */
-	void writeBytes(int exchangeId, byte[] buf, int off, int len) throws IOException
+	void writeBytes(MultiplexedExchange exchange, byte[] buf, int off, int len) throws IOException
 	{
-		synchronized(rawOutLock)
-		{
+		int exchangeId = exchange.id();
+		if(DEBUG)
 			debugOut(exchangeId, "Sending " + len + " bytes: " + Arrays.toString(Arrays.copyOfRange(buf, off, off + len)));
-			rawOut.writeInt(exchangeId);
-			rawOut.writeInt(len);
-			rawOut.write(buf, off, len);
-			rawOut.flush();
+		if(frameWriter != null)
+		{
+			if(!frameWriter.writeDataFrames(exchange, buf, off, len, config.maxFrameSize()))
+				throwNotOpen();
+			return;
+		}
+		// Writing at most the maximum frame size per frame lets frames of other exchanges be sent in between.
+		while(len != 0)
+		{
+			int frameLen = Math.min(len, config.maxFrameSize());
+			synchronized(rawOutLock)
+			{
+				rawOut.writeDataFrame(exchangeId, buf, off, frameLen);
+				rawOut.flush();
+			}
+			off += frameLen;
+			len -= frameLen;
 		}
 	}
 	/**
@@ -239,24 +569,34 @@ public class MultiplexedExchangePool implements ExchangePool
 	 */
 	void writeOutputEOF(int exchangeId) throws IOException
 	{
-		synchronized(rawOutLock)
-		{
-			debugOut(exchangeId, "Sending EOF");
-			rawOut.writeInt(exchangeId);
-			rawOut.writeInt(0);
-			rawOut.flush();
-		}
+		debugOut(exchangeId, "Sending EOF");
+		// Exchanges the other side is done with aren't closed by close() anymore; see unregisterExchange.
+		if(state.get() == State.CLOSED)
+			return;
+		writeControlFrame(exchangeId, 0);
 	}
 	/**
 	 * This must not be called while the caller holds {@link #state}; see {@link #readerThread}.
 	 */
 	void writeInputEOF(int exchangeId) throws IOException
 	{
+		debugIn(exchangeId, "Sending EOF");
+		// Exchanges the other side is done with aren't closed by close() anymore; see unregisterExchange.
+		if(state.get() == State.CLOSED)
+			return;
+		writeControlFrame(exchangeId | SIGN_BIT, 0);
+	}
+	private void writeControlFrame(int exchangeIdWord, int len) throws IOException
+	{
+		if(frameWriter != null)
+		{
+			if(!frameWriter.writeControlFrame(exchangeIdWord, len))
+				throwNotOpen();
+			return;
+		}
 		synchronized(rawOutLock)
 		{
-			debugIn(exchangeId, "Sending EOF");
-			rawOut.writeInt(exchangeId | SIGN_BIT);
-			rawOut.writeInt(0);
+			rawOut.writeHeader(exchangeIdWord, len);
 			rawOut.flush();
 		}
 	}
@@ -304,10 +644,17 @@ public class MultiplexedExchangePool implements ExchangePool
 					readyExchanges.add(MultiplexedExchange.createSentry());
 
 				readerThread.interrupt();
-				exchangesById.get().forEach(MultiplexedExchange::closeWithoutSendingEOF);
+				if(reservoirRefillerThread != null)
+					reservoirRefillerThread.interrupt();
+				exchanges.forEach(MultiplexedExchange::closeWithoutSendingEOF);
+				awaitingPeerOpen.forEach(MultiplexedExchange::closeWithoutSendingEOF);
 			}
 		} finally
 		{
+			// Unsent frames are discarded; the other side will see EOF for those exchanges anyway.
+			if(frameWriter != null)
+				frameWriter.shutDown();
+
 			// Then, close rawExchange.
 			// Note that at this point it's still possible some thread reads from rawIn or writes to rawOut.
 			rawExchange.close();
@@ -317,6 +664,8 @@ public class MultiplexedExchangePool implements ExchangePool
 		}
 	}
 
+	// Callers building a message dynamically have to check DEBUG themselves,
+	// otherwise the message gets built (and allocated) even if debugging is disabled.
 	private void debugIn(int exchangeId, String message) throws UnexpectedResponseException
 	{
 		debug(exchangeId, "In ", message);
@@ -0,0 +1,124 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+/**
+ * Configuration of a {@link MultiplexedExchangePool}.
+ * Both sides of a multiplexed connection must use the same receive window;
+ * the protocol can't detect a mismatch reliably.
+ * <p>
+ * The receive window is the number of bytes the other side may send for one exchange
+ * without waiting for a read on this side. If it is {@link #NO_RECEIVE_WINDOW},
+ * bytes are only sent once a read is waiting for them, which costs one round trip over the raw exchange per read.
+ * Otherwise, each exchange buffers up to that many received bytes and returns credit to the other side in batches,
+ * so a writer only has to wait for the reader if the reader falls behind by more than the receive window.
+ * <p>
+ * If the frame writer thread is used, writes only enqueue frames, and a dedicated thread writes them to the raw exchange,
+ * flushing once for all frames available at that time instead of once per frame.
+ * The maximum batching delay is how long that thread may wait for more frames before flushing,
+ * counted from the first unflushed frame, so it also bounds how long frames wait for a flush while more frames keep coming;
+ * 0 means flushing as soon as no more frames are available. Unlike the receive window,
+ * these two only affect the local side and don't have to match the other side.
+ * <p>
+ * If the reservoir depth is not {@link #NO_RESERVOIR}, the pool keeps up to that many exchanges opened in advance,
+ * and opens new ones as soon as fewer than the refill threshold are left.
+ * This only makes sense if both sides use a reservoir, but a mismatch doesn't break anything.
+ * <p>
+ * If zero-RTT open is enabled, a new exchange can be used as soon as its open frame has been sent,
+ * without waiting for the other side to open the corresponding exchange.
+ * Frames sent before that are buffered or answered by the other side as usual.
+ * This also only affects the local side, but it allows this side to open exchanges faster than the other side uses them.
+ * <p>
+ * The maximum frame size limits how many bytes a single data frame may carry. Bigger writes are split into several frames,
+ * and other exchanges can send their frames in between, so a big write doesn't block all other exchanges until it is done.
+ * Without a window, each frame needs its own read on the other side, so small frame sizes cost throughput.
+ * This only affects the local side as well.
+ * <p>
+ * In windowed mode, received bytes are buffered in chunks shared by all exchanges, which are only held while bytes are buffered.
+ * The receive buffer budget is the number of buffered bytes above which exchanges whose reader falls behind
+ * stop returning credit, and the maximum number of bytes in unused chunks kept for reuse.
+ * It has no effect without a window.
+ */
+public record MultiplexedExchangePoolConfig(int receiveWindow, boolean useFrameWriterThread, long maxBatchingDelayNanos,
+		int reservoirDepth, int reservoirRefillThreshold, boolean zeroRttOpen, int maxFrameSize, long receiveBufferBudget)
+{
+	public static final int		NO_RECEIVE_WINDOW					= 0;
+	public static final int		DEFAULT_RECEIVE_WINDOW				= 64 * 1024;
+	public static final boolean	DEFAULT_USE_FRAME_WRITER_THREAD		= false;
+	public static final long	DEFAULT_MAX_BATCHING_DELAY_NANOS	= 0;
+	public static final int		NO_RESERVOIR						= 0;
+	public static final boolean	DEFAULT_ZERO_RTT_OPEN				= false;
+	public static final int		UNLIMITED_FRAME_SIZE				= Integer.MAX_VALUE;
+	public static final long	UNLIMITED_RECEIVE_BUFFER_BUDGET		= Long.MAX_VALUE;
+
+	public static final MultiplexedExchangePoolConfig DEFAULT = new MultiplexedExchangePoolConfig(NO_RECEIVE_WINDOW,
+			DEFAULT_USE_FRAME_WRITER_THREAD, DEFAULT_MAX_BATCHING_DELAY_NANOS, NO_RESERVOIR, 0, DEFAULT_ZERO_RTT_OPEN, UNLIMITED_FRAME_SIZE,
+			UNLIMITED_RECEIVE_BUFFER_BUDGET);
+
+	public MultiplexedExchangePoolConfig
+	{
+		if(receiveWindow < 0)
+			throw new IllegalArgumentException("negative receive window: " + receiveWindow);
+		if(maxBatchingDelayNanos < 0)
+			throw new IllegalArgumentException("negative maximum batching delay: " + maxBatchingDelayNanos);
+		if(reservoirDepth < 0)
+			throw new IllegalArgumentException("negative reservoir depth: " + reservoirDepth);
+		if(reservoirDepth == NO_RESERVOIR ? reservoirRefillThreshold != 0 : reservoirRefillThreshold < 1 || reservoirRefillThreshold > reservoirDepth)
+			throw new IllegalArgumentException("reservoir refill threshold " + reservoirRefillThreshold + " illegal for reservoir depth " + reservoirDepth);
+		if(maxFrameSize < 1)
+			throw new IllegalArgumentException("non-positive maximum frame size: " + maxFrameSize);
+		if(receiveBufferBudget < 0)
+			throw new IllegalArgumentException("negative receive buffer budget: " + receiveBufferBudget);
+	}
+
+	public MultiplexedExchangePoolConfig withReceiveWindow(int receiveWindow)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+	public MultiplexedExchangePoolConfig withUseFrameWriterThread(boolean useFrameWriterThread)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+	public MultiplexedExchangePoolConfig withMaxBatchingDelayNanos(long maxBatchingDelayNanos)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+	/**
+	 * Pass {@link #NO_RESERVOIR} and 0 to disable the reservoir.
+	 * Otherwise, the refill threshold must be between 1 and the depth, inclusive.
+	 */
+	public MultiplexedExchangePoolConfig withReservoir(int reservoirDepth, int reservoirRefillThreshold)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+
+	public MultiplexedExchangePoolConfig withZeroRttOpen(boolean zeroRttOpen)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+
+	public MultiplexedExchangePoolConfig withMaxFrameSize(int maxFrameSize)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+
+	public MultiplexedExchangePoolConfig withReceiveBufferBudget(long receiveBufferBudget)
+	{
+		return new MultiplexedExchangePoolConfig(receiveWindow, useFrameWriterThread, maxBatchingDelayNanos, reservoirDepth, reservoirRefillThreshold, zeroRttOpen, maxFrameSize,
+				receiveBufferBudget);
+	}
+
+	public boolean isWindowed()
+	{
+		return receiveWindow != NO_RECEIVE_WINDOW;
+	}
+
+	public boolean hasReservoir()
+	{
+		return reservoirDepth != NO_RESERVOIR;
+	}
+}
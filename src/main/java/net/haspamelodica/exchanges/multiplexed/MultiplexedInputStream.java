@@ -7,24 +7,31 @@ import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicReference;
 
 import net.haspamelodica.exchanges.util.ClosedException;
 
-public class MultiplexedInputStream extends InputStream
+public class MultiplexedInputStream extends AbstractMultiplexedInputStream
 {
 	private final MultiplexedExchangePool	multiplexer;
+	private final MultiplexedExchange		exchange;
 	private final int						exchangeId;
 
-	private final AtomicReference<State>	state;
-	private final Semaphore					waitingForResponseSemaphore;
+	private final AtomicPackedState	state;
+	private final Semaphore			waitingForResponseSemaphore;
 
-	public MultiplexedInputStream(MultiplexedExchangePool multiplexer, int exchangeId)
+	// The buffer and offset of the current read don't fit into the packed state.
+	// They are written by the reading thread while IDLE, published by the transition to WAITING_FOR_RESPONSE,
+	// and read by the reader thread. They aren't cleared afterwards because the reader thread might still be using them.
+	private byte[]	readBuf;
+	private int		readOff;
+
+	public MultiplexedInputStream(MultiplexedExchangePool multiplexer, MultiplexedExchange exchange)
 	{
 		this.multiplexer = multiplexer;
-		this.exchangeId = exchangeId;
+		this.exchange = exchange;
+		this.exchangeId = exchange.id();
 
-		this.state = new AtomicReference<>(new State(State.Kind.IDLE, -1, -1, null));
+		this.state = new AtomicPackedState(State.of(State.Kind.IDLE, -1));
 		this.waitingForResponseSemaphore = new Semaphore(0);
 	}
 
@@ -44,12 +51,18 @@ public class MultiplexedInputStream extends InputStream
 		if(len == 0)
 			return 0;
 
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.get();
+		if(State.kind(oldState) == State.Kind.IDLE)
 		{
-			case IDLE -> new State(State.Kind.WAITING_FOR_RESPONSE, off, len, buf);
-			case WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ, BYTES_READY, BYTES_READY_THEN_EOF, EOF, IO_EXCEPTION, CLOSED, CLOSED_DURING_WAIT_FOR_RESPONSE -> state;
-		});
-		return switch(oldState.kind())
+			// Only set the buffer fields if the state is IDLE; otherwise, we might overwrite the buffer of another thread's read.
+			// (Two threads seeing IDLE at the same time is still a race, but reading from multiple threads at once isn't allowed anyway;
+			// the exception below is only a best-effort detection of that.)
+			readBuf = buf;
+			readOff = off;
+			// If this fails, we get the new state, which can't be IDLE.
+			oldState = state.compareAndExchange(oldState, State.of(State.Kind.WAITING_FOR_RESPONSE, len));
+		}
+		return switch(State.kind(oldState))
 		{
 			case IDLE -> notifyReadyAndWaitForRead(len);
 			case WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ, BYTES_READY, BYTES_READY_THEN_EOF -> throw new IOException("Another thread is currently reading");
@@ -72,10 +85,10 @@ public class MultiplexedInputStream extends InputStream
 			throw new InterruptedIOException();
 		}
 
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case BYTES_READY -> new State(State.Kind.IDLE, -1, -1, null);
-			case BYTES_READY_THEN_EOF -> new State(State.Kind.EOF, -1, -1, null);
+			case BYTES_READY -> State.of(State.Kind.IDLE, -1);
+			case BYTES_READY_THEN_EOF -> State.of(State.Kind.EOF, -1);
 			// We got shut down in the meantime; keep that state.
 			// Keep CLOSED_DURING_WAIT_FOR_RESPONSE as well:
 			// Even if we don't wait for it any longer, the other side might still send an response.
@@ -84,10 +97,10 @@ public class MultiplexedInputStream extends InputStream
 			case WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ -> state;
 			case IDLE -> throw new IllegalStateException("impossible state; this is a bug");
 		});
-		return switch(oldState.kind())
+		return switch(State.kind(oldState))
 		{
-			case BYTES_READY -> oldState.len();
-			case BYTES_READY_THEN_EOF -> oldState.len();
+			case BYTES_READY -> State.len(oldState);
+			case BYTES_READY_THEN_EOF -> State.len(oldState);
 			case EOF -> -1;
 			case IO_EXCEPTION -> multiplexer.throwIOException();
 			case CLOSED, CLOSED_DURING_WAIT_FOR_RESPONSE -> throwClosed();
@@ -96,24 +109,25 @@ public class MultiplexedInputStream extends InputStream
 		};
 	}
 
+	@Override
 	void recordReceivedData(int len, InputStream in) throws UnexpectedResponseException, IOException
 	{
 		if(len <= 0)
 			throw new UnexpectedResponseException("received data len <= 0");
 
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case WAITING_FOR_RESPONSE -> new State(State.Kind.WAITING_FOR_RESPONSE_IN_READ, -1, -1, null);
+			case WAITING_FOR_RESPONSE -> State.of(State.Kind.WAITING_FOR_RESPONSE_IN_READ, -1);
 			// illegal response because not waiting for response
 			case IDLE, BYTES_READY, BYTES_READY_THEN_EOF -> state;
 			// Special side; see below.
-			case CLOSED_DURING_WAIT_FOR_RESPONSE -> new State(State.Kind.CLOSED, -1, -1, null);
+			case CLOSED_DURING_WAIT_FOR_RESPONSE -> State.of(State.Kind.CLOSED, -1);
 			// we got shut down in the meantime; keep that state
 			case EOF, IO_EXCEPTION, CLOSED -> state;
 			case WAITING_FOR_RESPONSE_IN_READ -> throw new IllegalStateException("two threads tried to record received data; this is a bug");
 		});
 
-		switch(oldState.kind())
+		switch(State.kind(oldState))
 		{
 			case WAITING_FOR_RESPONSE ->
 			{
@@ -137,22 +151,24 @@ public class MultiplexedInputStream extends InputStream
 			case WAITING_FOR_RESPONSE_IN_READ -> throw new IllegalStateException("impossible state; this is a bug");
 		}
 
-		if(len > oldState.len())
+		if(len > State.len(oldState))
 			throw new UnexpectedResponseException("received data len > ready len");
 
-		int realRead = in.readNBytes(oldState.buf(), oldState.off(), len);
+		// Published by the transition to WAITING_FOR_RESPONSE, which we just observed.
+		byte[] buf = readBuf;
+		int off = readOff;
+		int realRead = in.readNBytes(buf, off, len);
 		if(MultiplexedExchangePool.DEBUG)
-			System.err.println("Read " + realRead + " bytes: " + Arrays.toString(
-					Arrays.copyOfRange(oldState.buf(), oldState.off(), oldState.off() + realRead)));
+			System.err.println("Read " + realRead + " bytes: " + Arrays.toString(Arrays.copyOfRange(buf, off, off + realRead)));
 
 		if(realRead != len)
 			// This means EOF.
 			// We don't need to clean up the state; the handling from MultiplexedExchangePool is enough.
 			throw new EOFException();
 
-		oldState = state.getAndUpdate(state -> switch(state.kind())
+		oldState = state.getAndUpdate(len, (state, readLen) -> switch(State.kind(state))
 		{
-			case WAITING_FOR_RESPONSE_IN_READ -> new State(State.Kind.BYTES_READY, -1, len, null);
+			case WAITING_FOR_RESPONSE_IN_READ -> State.of(State.Kind.BYTES_READY, readLen);
 			// we got shut down in the meantime; keep that state
 			case IO_EXCEPTION, CLOSED_DURING_WAIT_FOR_RESPONSE -> state;
 			case EOF -> throw new IllegalStateException("became EOF during read; this is a bug");
@@ -161,7 +177,7 @@ public class MultiplexedInputStream extends InputStream
 			case IDLE, WAITING_FOR_RESPONSE, BYTES_READY, BYTES_READY_THEN_EOF, CLOSED -> throw new IllegalStateException("impossible state; this is a bug");
 		});
 
-		switch(oldState.kind())
+		switch(State.kind(oldState))
 		{
 			case WAITING_FOR_RESPONSE_IN_READ -> waitingForResponseSemaphore.release();
 			case CLOSED_DURING_WAIT_FOR_RESPONSE ->
@@ -173,26 +189,28 @@ public class MultiplexedInputStream extends InputStream
 		}
 	}
 
+	@Override
 	void eofReached()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE, WAITING_FOR_RESPONSE -> new State(State.Kind.EOF, -1, -1, null);
-			case BYTES_READY -> new State(State.Kind.BYTES_READY_THEN_EOF, -1, state.len(), null);
+			case IDLE, WAITING_FOR_RESPONSE -> State.of(State.Kind.EOF, -1);
+			case BYTES_READY -> State.of(State.Kind.BYTES_READY_THEN_EOF, State.len(state));
 			case BYTES_READY_THEN_EOF, EOF, IO_EXCEPTION, CLOSED, CLOSED_DURING_WAIT_FOR_RESPONSE -> state;
 			case WAITING_FOR_RESPONSE_IN_READ -> throw new IllegalStateException("becoming EOF during read; this is a bug");
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_RESPONSE || oldState.kind() == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE || State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
 			waitingForResponseSemaphore.release();
 	}
+	@Override
 	void ioExceptionThrown()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE, WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ, BYTES_READY -> new State(State.Kind.IO_EXCEPTION, -1, -1, null);
+			case IDLE, WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ, BYTES_READY -> State.of(State.Kind.IO_EXCEPTION, -1);
 			case BYTES_READY_THEN_EOF, EOF, IO_EXCEPTION, CLOSED, CLOSED_DURING_WAIT_FOR_RESPONSE -> state;
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_RESPONSE || oldState.kind() == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE || State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
 			waitingForResponseSemaphore.release();
 	}
 
@@ -205,23 +223,42 @@ public class MultiplexedInputStream extends InputStream
 	public void close() throws IOException
 	{
 		if(closeWithoutSendingEOF())
+		{
 			multiplexer.writeInputEOF(exchangeId);
+			exchange.localInputClosed();
+		}
 	}
+	@Override
 	boolean closeWithoutSendingEOF()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ -> new State(State.Kind.CLOSED_DURING_WAIT_FOR_RESPONSE, -1, -1, null);
-			case IDLE, BYTES_READY, BYTES_READY_THEN_EOF, EOF, IO_EXCEPTION -> new State(State.Kind.CLOSED, -1, -1, null);
+			case WAITING_FOR_RESPONSE, WAITING_FOR_RESPONSE_IN_READ -> State.of(State.Kind.CLOSED_DURING_WAIT_FOR_RESPONSE, -1);
+			case IDLE, BYTES_READY, BYTES_READY_THEN_EOF, EOF, IO_EXCEPTION -> State.of(State.Kind.CLOSED, -1);
 			case CLOSED, CLOSED_DURING_WAIT_FOR_RESPONSE -> state;
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_RESPONSE || oldState.kind() == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE || State.kind(oldState) == State.Kind.WAITING_FOR_RESPONSE_IN_READ)
 			waitingForResponseSemaphore.release();
-		return oldState.kind() != State.Kind.CLOSED && oldState.kind() != State.Kind.CLOSED_DURING_WAIT_FOR_RESPONSE;
+		return State.kind(oldState) != State.Kind.CLOSED && State.kind(oldState) != State.Kind.CLOSED_DURING_WAIT_FOR_RESPONSE;
 	}
 
-	private static record State(Kind kind, int off, int len, byte[] buf)
+	private static final class State
 	{
+		private static final Kind[] KINDS = Kind.values();
+
+		private static long of(Kind kind, int len)
+		{
+			return AtomicPackedState.pack(kind.ordinal(), len);
+		}
+		private static Kind kind(long state)
+		{
+			return KINDS[AtomicPackedState.kindOrdinal(state)];
+		}
+		private static int len(long state)
+		{
+			return AtomicPackedState.data(state);
+		}
+
 		private static enum Kind
 		{
 			IDLE,
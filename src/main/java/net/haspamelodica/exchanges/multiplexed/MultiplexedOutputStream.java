@@ -3,27 +3,29 @@ package net.haspamelodica.exchanges.multiplexed;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.io.OutputStream;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicReference;
 
 import net.haspamelodica.exchanges.util.ClosedException;
 
-public class MultiplexedOutputStream extends OutputStream
+public class MultiplexedOutputStream extends AbstractMultiplexedOutputStream
 {
 	private final MultiplexedExchangePool	multiplexer;
+	private final MultiplexedExchange		exchange;
 	private final int						exchangeId;
+	private final int						maxFrameSize;
 
-	private final AtomicReference<State>	state;
-	private final Semaphore					waitingForReadyBytesSemaphore;
+	private final AtomicPackedState	state;
+	private final Semaphore			waitingForReadyBytesSemaphore;
 
-	public MultiplexedOutputStream(MultiplexedExchangePool multiplexer, int exchangeId)
+	public MultiplexedOutputStream(MultiplexedExchangePool multiplexer, MultiplexedExchange exchange)
 	{
 		this.multiplexer = multiplexer;
-		this.exchangeId = exchangeId;
+		this.exchange = exchange;
+		this.exchangeId = exchange.id();
+		this.maxFrameSize = multiplexer.config().maxFrameSize();
 
-		this.state = new AtomicReference<>(new State(State.Kind.IDLE, -1));
+		this.state = new AtomicPackedState(State.of(State.Kind.IDLE, -1));
 		this.waitingForReadyBytesSemaphore = new Semaphore(0);
 	}
 
@@ -37,19 +39,33 @@ public class MultiplexedOutputStream extends OutputStream
 	public void write(byte[] buf, int off, int len) throws UnexpectedResponseException, ClosedException, EOFException, InterruptedIOException, IOException
 	{
 		Objects.checkFromIndexSize(off, len, buf.length);
+
+		// Each chunk is written as a separate write request, so no frame exceeds the maximum frame size,
+		// and frames of other exchanges can be sent between the frames of a big write.
+		while(len > maxFrameSize)
+		{
+			writeChunk(buf, off, maxFrameSize);
+			off += maxFrameSize;
+			len -= maxFrameSize;
+		}
+		writeChunk(buf, off, len);
+	}
+
+	private void writeChunk(byte[] buf, int off, int len) throws UnexpectedResponseException, ClosedException, EOFException, InterruptedIOException, IOException
+	{
 		if(len == 0)
 			return;
 
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE -> new State(State.Kind.WAITING_FOR_READY_BYTES, -1);
-			case WAITING_FOR_AVAILABLE_BYTES -> new State(State.Kind.WRITING, -1);
+			case IDLE -> State.of(State.Kind.WAITING_FOR_READY_BYTES, -1);
+			case WAITING_FOR_AVAILABLE_BYTES -> State.of(State.Kind.WRITING, -1);
 			case WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES, EOF, IO_EXCEPTION, CLOSED -> state;
 		});
-		switch(oldState.kind())
+		switch(State.kind(oldState))
 		{
 			case IDLE -> writeChecked(buf, off, len, 0);
-			case WAITING_FOR_AVAILABLE_BYTES -> writeChecked(buf, off, len, oldState.readyBytes());
+			case WAITING_FOR_AVAILABLE_BYTES -> writeChecked(buf, off, len, State.readyBytes(oldState));
 			case WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> throw new IOException("Another thread is currently writing");
 			case EOF -> throwEOF();
 			case IO_EXCEPTION -> multiplexer.throwIOException();
@@ -67,7 +83,7 @@ public class MultiplexedOutputStream extends OutputStream
 			{
 				int lenToWrite = Math.min(len, readyBytes);
 
-				multiplexer.writeBytes(exchangeId, buf, off, lenToWrite);
+				multiplexer.writeBytes(exchange, buf, off, lenToWrite);
 				off += lenToWrite;
 				len -= lenToWrite;
 				// The read request is now finished, regardless of whether readyBytes > len or not.
@@ -76,10 +92,10 @@ public class MultiplexedOutputStream extends OutputStream
 				if(len == 0)
 				{
 					// write request finished
-					state.getAndUpdate(state -> switch(state.kind())
+					state.getAndUpdate(state -> switch(State.kind(state))
 					{
-						case WRITING -> new State(State.Kind.IDLE, -1);
-						case WRITING_AND_GOT_NEXT_READY_BYTES -> new State(State.Kind.WAITING_FOR_AVAILABLE_BYTES, state.readyBytes());
+						case WRITING -> State.of(State.Kind.IDLE, -1);
+						case WRITING_AND_GOT_NEXT_READY_BYTES -> State.of(State.Kind.WAITING_FOR_AVAILABLE_BYTES, State.readyBytes(state));
 						// we got shut down in the meantime; keep that state, but don't throw since the write finished
 						case EOF, IO_EXCEPTION, CLOSED -> state;
 						case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES -> throw new IllegalStateException("impossible state; this is a bug");
@@ -89,16 +105,16 @@ public class MultiplexedOutputStream extends OutputStream
 
 				if(!immediateWriteStateUpdateUnneccessaryWhenLenNotNull)
 				{
-					State oldState = state.getAndUpdate(state -> switch(state.kind())
+					long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 					{
-						case WRITING -> new State(State.Kind.WAITING_FOR_READY_BYTES, -1);
-						case WRITING_AND_GOT_NEXT_READY_BYTES -> new State(State.Kind.WRITING, -1);
+						case WRITING -> State.of(State.Kind.WAITING_FOR_READY_BYTES, -1);
+						case WRITING_AND_GOT_NEXT_READY_BYTES -> State.of(State.Kind.WRITING, -1);
 						// we got shut down in the meantime; keep that state
 						case EOF, IO_EXCEPTION, CLOSED -> state;
 						case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES -> throw new IllegalStateException("impossible state; this is a bug");
 					});
 
-					switch(oldState.kind())
+					switch(State.kind(oldState))
 					{
 						case WRITING ->
 						{
@@ -106,7 +122,7 @@ public class MultiplexedOutputStream extends OutputStream
 						}
 						case WRITING_AND_GOT_NEXT_READY_BYTES ->
 						{
-							readyBytes = oldState.readyBytes();
+							readyBytes = State.readyBytes(oldState);
 							// skip waiting and directly go to the next loop iteration,
 							// which starts with checking readyBytes
 							continue;
@@ -128,26 +144,25 @@ public class MultiplexedOutputStream extends OutputStream
 				throw new InterruptedIOException();
 			}
 
-			int lenFinal = len;
-			State oldState = state.getAndUpdate(state -> switch(state.kind())
+			long oldState = state.getAndUpdate(len, (state, remainingLen) -> switch(State.kind(state))
 			{
 				// If the read request will finish, we can't directly set to IDLE / WAITING_FOR_AVAILABLE_BYTES,
 				// because another writing thread could be faster than us.
 				// If the read request won't be finished now, we can directly set the state to WAITING_FOR_READY_BYTES,
 				// because other writing threads won't be allowed writing in either case.
-				case JUST_GOT_READY_BYTES -> new State(lenFinal > state.readyBytes() ? State.Kind.WAITING_FOR_READY_BYTES : State.Kind.WRITING, -1);
+				case JUST_GOT_READY_BYTES -> State.of(remainingLen > State.readyBytes(state) ? State.Kind.WAITING_FOR_READY_BYTES : State.Kind.WRITING, -1);
 				// we got shut down in the meantime; keep that state
 				case EOF, IO_EXCEPTION, CLOSED -> state;
 				// spurious wakeup is impossible with semaphores, so this means somehow the semaphore got released unexpectedly
 				case WAITING_FOR_READY_BYTES -> state;
 				case IDLE, WAITING_FOR_AVAILABLE_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> throw new IllegalStateException("impossible state; this is a bug");
 			});
-			switch(oldState.kind())
+			switch(State.kind(oldState))
 			{
 				case JUST_GOT_READY_BYTES ->
 				{
 					// loop will continue as normal.
-					readyBytes = oldState.readyBytes();
+					readyBytes = State.readyBytes(oldState);
 					// if len != 0, the state update function above will already have set the state to WAITING_FOR_READY_BYTES,
 					// so the write part won't have to update the state in that case.
 					immediateWriteStateUpdateUnneccessaryWhenLenNotNull = true;
@@ -161,23 +176,24 @@ public class MultiplexedOutputStream extends OutputStream
 		}
 	}
 
+	@Override
 	void recordReadyForReceiving(int len) throws UnexpectedResponseException, IOException
 	{
 		if(len <= 0)
 			throw new UnexpectedResponseException("ready bytes len <= 0");
 
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(len, (state, readyLen) -> switch(State.kind(state))
 		{
-			case IDLE -> new State(State.Kind.WAITING_FOR_AVAILABLE_BYTES, len);
-			case WAITING_FOR_READY_BYTES -> new State(State.Kind.JUST_GOT_READY_BYTES, len);
-			case WRITING -> new State(State.Kind.WRITING_AND_GOT_NEXT_READY_BYTES, len);
+			case IDLE -> State.of(State.Kind.WAITING_FOR_AVAILABLE_BYTES, readyLen);
+			case WAITING_FOR_READY_BYTES -> State.of(State.Kind.JUST_GOT_READY_BYTES, readyLen);
+			case WRITING -> State.of(State.Kind.WRITING_AND_GOT_NEXT_READY_BYTES, readyLen);
 			// illegal response because two reads
 			case WAITING_FOR_AVAILABLE_BYTES, JUST_GOT_READY_BYTES, WRITING_AND_GOT_NEXT_READY_BYTES -> state;
 			// we got shut down in the meantime; keep that state
 			case EOF, IO_EXCEPTION, CLOSED -> state;
 		});
 
-		switch(oldState.kind())
+		switch(State.kind(oldState))
 		{
 			case IDLE, WRITING ->
 			{
@@ -196,24 +212,26 @@ public class MultiplexedOutputStream extends OutputStream
 		}
 	}
 
+	@Override
 	void eofReached()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> new State(State.Kind.EOF, -1);
+			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> State.of(State.Kind.EOF, -1);
 			case EOF, IO_EXCEPTION, CLOSED -> state;
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_READY_BYTES)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_READY_BYTES)
 			waitingForReadyBytesSemaphore.release();
 	}
+	@Override
 	void ioExceptionThrown()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> new State(State.Kind.IO_EXCEPTION, -1);
+			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES -> State.of(State.Kind.IO_EXCEPTION, -1);
 			case EOF, IO_EXCEPTION, CLOSED -> state;
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_READY_BYTES)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_READY_BYTES)
 			waitingForReadyBytesSemaphore.release();
 	}
 
@@ -231,22 +249,41 @@ public class MultiplexedOutputStream extends OutputStream
 	public void close() throws IOException
 	{
 		if(closeWithoutSendingEOF())
+		{
 			multiplexer.writeOutputEOF(exchangeId);
+			exchange.localOutputClosed();
+		}
 	}
+	@Override
 	boolean closeWithoutSendingEOF()
 	{
-		State oldState = state.getAndUpdate(state -> switch(state.kind())
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
 		{
-			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES, EOF, IO_EXCEPTION -> new State(State.Kind.CLOSED, -1);
+			case IDLE, WAITING_FOR_AVAILABLE_BYTES, WAITING_FOR_READY_BYTES, JUST_GOT_READY_BYTES, WRITING, WRITING_AND_GOT_NEXT_READY_BYTES, EOF, IO_EXCEPTION -> State.of(State.Kind.CLOSED, -1);
 			case CLOSED -> state;
 		});
-		if(oldState.kind() == State.Kind.WAITING_FOR_READY_BYTES)
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_READY_BYTES)
 			waitingForReadyBytesSemaphore.release();
-		return oldState.kind() != State.Kind.CLOSED;
+		return State.kind(oldState) != State.Kind.CLOSED;
 	}
 
-	private static record State(Kind kind, int readyBytes)
+	private static final class State
 	{
+		private static final Kind[] KINDS = Kind.values();
+
+		private static long of(Kind kind, int readyBytes)
+		{
+			return AtomicPackedState.pack(kind.ordinal(), readyBytes);
+		}
+		private static Kind kind(long state)
+		{
+			return KINDS[AtomicPackedState.kindOrdinal(state)];
+		}
+		private static int readyBytes(long state)
+		{
+			return AtomicPackedState.data(state);
+		}
+
 		private static enum Kind
 		{
 			IDLE,
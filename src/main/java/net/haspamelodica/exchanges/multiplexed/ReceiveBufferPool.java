@@ -0,0 +1,83 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the fixed-size chunks the receive buffers of windowed exchanges are made of,
+ * see {@link WindowedMultiplexedInputStream}, and keeps track of the received bytes which haven't been read yet.
+ * <p>
+ * Chunks are only taken when bytes arrive and returned once they have been read completely,
+ * so idle exchanges don't hold any memory. Returned chunks are kept for reuse as long as they fit into the budget.
+ * If more bytes than the budget are buffered, {@link #isOverBudget()} tells exchanges to hold back credit.
+ * <p>
+ * Thread-safe.
+ */
+class ReceiveBufferPool
+{
+	static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	private final int	chunkSize;
+	private final long	budget;
+
+	private final Queue<byte[]>	freeChunks;
+	private final AtomicInteger	freeChunksCount;
+	private final AtomicLong	bufferedBytes;
+
+	ReceiveBufferPool(int chunkSize, long budget)
+	{
+		this.chunkSize = chunkSize;
+		this.budget = budget;
+
+		this.freeChunks = new ConcurrentLinkedQueue<>();
+		this.freeChunksCount = new AtomicInteger();
+		this.bufferedBytes = new AtomicLong();
+	}
+
+	int chunkSize()
+	{
+		return chunkSize;
+	}
+
+	byte[] takeChunk()
+	{
+		byte[] chunk = freeChunks.poll();
+		if(chunk == null)
+			return new byte[chunkSize];
+		freeChunksCount.decrementAndGet();
+		return chunk;
+	}
+
+	void returnChunk(byte[] chunk)
+	{
+		// The count is only approximate under contention, which is fine for a cache limit.
+		if((long) freeChunksCount.get() * chunkSize >= budget)
+			return;
+		freeChunksCount.incrementAndGet();
+		freeChunks.add(chunk);
+	}
+
+	void bytesBuffered(int len)
+	{
+		bufferedBytes.addAndGet(len);
+	}
+	void bytesConsumed(int len)
+	{
+		bufferedBytes.addAndGet(-len);
+	}
+
+	boolean isOverBudget()
+	{
+		return bufferedBytes.get() > budget;
+	}
+
+	/**
+	 * Returns the number of bytes received by all exchanges using this pool which haven't been read yet.
+	 */
+	long bufferedBytes()
+	{
+		return bufferedBytes.get();
+	}
+}
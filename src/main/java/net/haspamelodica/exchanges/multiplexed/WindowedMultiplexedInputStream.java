@@ -0,0 +1,309 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+
+import net.haspamelodica.exchanges.util.ClosedException;
+
+/**
+ * The input stream of an exchange of a windowed {@link MultiplexedExchangePool}; see {@link MultiplexedExchangePoolConfig}.
+ * <p>
+ * The other side may send bytes as long as it has credit left, regardless of whether a read is currently waiting.
+ * The reader thread stores received bytes in a ringbuffer.
+ * Because the other side starts with the receive window as credit and credit is only returned for bytes which have been read,
+ * at most a receive window of bytes is buffered at any time, so the reader thread never has to wait for a read.
+ * The ringbuffer consists of chunks from the {@link ReceiveBufferPool}, which are only taken when bytes arrive
+ * and returned as soon as they have been read completely. It has one chunk more than needed for the receive window,
+ * so the reader thread never wraps around into the chunk the thread currently reading is still in.
+ * <p>
+ * Credit is returned in batches of at least half the receive window to keep the number of control frames low.
+ * This can't cause a deadlock: if the writer ran out of credit, the ringbuffer contains a full window of unacknowledged bytes,
+ * so the reads emptying the ringbuffer will return at least half of it as credit.
+ * If the receive buffer pool is over its budget, credit is held back until a read empties the ringbuffer,
+ * so while the budget is exceeded, the other side can only send more bytes to exchanges which are keeping up.
+ * This doesn't affect the argument above.
+ */
+class WindowedMultiplexedInputStream extends AbstractMultiplexedInputStream
+{
+	private final MultiplexedExchangePool	multiplexer;
+	private final MultiplexedExchange		exchange;
+	private final int						exchangeId;
+
+	private final ReceiveBufferPool	bufferPool;
+	private final int				receiveWindow;
+	private final int				chunkSize;
+	private final byte[][]			chunks;
+	private final int				ringbufferSize;
+	private final int				creditBatch;
+
+	// only accessed by the reader thread
+	private int writePos;
+
+	// only accessed by the thread currently reading
+	private int	readPos;
+	private int	unacknowledged;
+
+	private final AtomicPackedState	state;
+	private final Semaphore			waitingForDataSemaphore;
+
+	WindowedMultiplexedInputStream(MultiplexedExchangePool multiplexer, MultiplexedExchange exchange, int receiveWindow)
+	{
+		this.multiplexer = multiplexer;
+		this.exchange = exchange;
+		this.exchangeId = exchange.id();
+
+		this.bufferPool = multiplexer.receiveBufferPool();
+		this.receiveWindow = receiveWindow;
+		this.chunkSize = bufferPool.chunkSize();
+		this.chunks = new byte[(receiveWindow + chunkSize - 1) / chunkSize + 1][];
+		this.ringbufferSize = chunks.length * chunkSize;
+		this.creditBatch = Math.max(1, receiveWindow / 2);
+
+		this.state = new AtomicPackedState(State.of(State.Kind.OPEN, 0));
+		this.waitingForDataSemaphore = new Semaphore(0);
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] buf = new byte[1];
+		int len = read(buf, 0, 1);
+		if(len == 1)
+			return buf[0] & 0xFF;
+		return -1;
+	}
+	@Override
+	public int read(byte[] buf, int off, int len) throws UnexpectedResponseException, ClosedException, InterruptedIOException, IOException
+	{
+		Objects.checkFromIndexSize(off, len, buf.length);
+		if(len == 0)
+			return 0;
+
+		for(;;)
+		{
+			long oldState = state.getAndUpdate(state -> switch(State.kind(state))
+			{
+				case OPEN -> State.buffered(state) != 0 ? state : State.of(State.Kind.WAITING_FOR_DATA, 0);
+				case WAITING_FOR_DATA, OUTPUT_EOF, IO_EXCEPTION, CLOSED -> state;
+			});
+			switch(State.kind(oldState))
+			{
+				case OPEN, OUTPUT_EOF ->
+				{
+					if(State.buffered(oldState) != 0)
+						return consumeBuffered(buf, off, len, State.buffered(oldState));
+					if(State.kind(oldState) == State.Kind.OUTPUT_EOF)
+						return -1;
+					// The update function set the state to WAITING_FOR_DATA.
+					waitForData();
+				}
+				case WAITING_FOR_DATA -> throw new IOException("Another thread is currently reading");
+				case IO_EXCEPTION -> multiplexer.throwIOException();
+				case CLOSED -> throwClosed();
+			}
+		}
+	}
+
+	private void waitForData() throws InterruptedIOException
+	{
+		try
+		{
+			waitingForDataSemaphore.acquire();
+		} catch(InterruptedException e)
+		{
+			long oldState = state.getAndUpdate(state -> State.kind(state) == State.Kind.WAITING_FOR_DATA ? State.of(State.Kind.OPEN, 0) : state);
+			// If we weren't waiting anymore, whoever ended our wait releases a permit, or already did.
+			// That permit has to be consumed; otherwise, the next wait would return immediately
+			// while the state still is WAITING_FOR_DATA, which looks like another thread waiting.
+			if(State.kind(oldState) != State.Kind.WAITING_FOR_DATA)
+				waitingForDataSemaphore.acquireUninterruptibly();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private int consumeBuffered(byte[] buf, int off, int len, int buffered) throws IOException
+	{
+		int read = Math.min(len, buffered);
+		for(int copied = 0; copied < read;)
+		{
+			int chunkIndex = readPos / chunkSize;
+			int chunkOff = readPos % chunkSize;
+			int portionSize = Math.min(read - copied, chunkSize - chunkOff);
+			System.arraycopy(chunks[chunkIndex], chunkOff, buf, off + copied, portionSize);
+			copied += portionSize;
+			readPos = (readPos + portionSize) % ringbufferSize;
+			if(chunkOff + portionSize == chunkSize)
+			{
+				// The reader thread doesn't write into this chunk anymore, and it will take a new one when it wraps around.
+				bufferPool.returnChunk(chunks[chunkIndex]);
+				chunks[chunkIndex] = null;
+			}
+		}
+
+		// Only now, after the bytes have been copied, the reader thread may overwrite them.
+		long oldState = state.getAndUpdate(read, (state, consumed) -> switch(State.kind(state))
+		{
+			case OPEN, OUTPUT_EOF -> State.of(State.kind(state), State.buffered(state) - consumed);
+			// we got shut down in the meantime; keep that state, but don't throw since the read succeeded
+			case IO_EXCEPTION, CLOSED -> state;
+			case WAITING_FOR_DATA -> throw new IllegalStateException("impossible state; this is a bug");
+		});
+
+		// If we got shut down in the meantime, the buffered bytes have already been subtracted.
+		if(State.kind(oldState) == State.Kind.OPEN || State.kind(oldState) == State.Kind.OUTPUT_EOF)
+			bufferPool.bytesConsumed(read);
+
+		// If the other side's output is closed, it doesn't need any more credit.
+		if(State.kind(oldState) == State.Kind.OPEN)
+		{
+			unacknowledged += read;
+			if(unacknowledged >= creditBatch && (State.buffered(oldState) == read || !bufferPool.isOverBudget()))
+			{
+				int credit = unacknowledged;
+				unacknowledged = 0;
+				multiplexer.writeReadyForReceiving(exchangeId, credit);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	void recordReceivedData(int len, InputStream rawIn) throws UnexpectedResponseException, IOException
+	{
+		if(len <= 0)
+			throw new UnexpectedResponseException("received data len <= 0");
+
+		long currentState = state.get();
+		switch(State.kind(currentState))
+		{
+			case OPEN, WAITING_FOR_DATA ->
+			{
+				// nothing to do; continue after this switch.
+			}
+			// This input stream got closed, but the other side might have sent data before it knew that.
+			// Skip that data to keep the raw stream valid.
+			case CLOSED ->
+			{
+				rawIn.skipNBytes(len);
+				return;
+			}
+			case OUTPUT_EOF -> throw new UnexpectedResponseException("Got data although we are EOF");
+			case IO_EXCEPTION -> multiplexer.throwIOException();
+		}
+
+		// The thread currently reading can only make the buffered byte count smaller, never bigger,
+		// so this check stays valid while we write into the ringbuffer.
+		if(len > receiveWindow - State.buffered(currentState))
+			throw new UnexpectedResponseException("received more data than the receive window allows");
+
+		for(int received = 0; received < len;)
+		{
+			int chunkIndex = writePos / chunkSize;
+			int chunkOff = writePos % chunkSize;
+			if(chunks[chunkIndex] == null)
+				chunks[chunkIndex] = bufferPool.takeChunk();
+			int portionSize = Math.min(len - received, chunkSize - chunkOff);
+			if(rawIn.readNBytes(chunks[chunkIndex], chunkOff, portionSize) != portionSize)
+				// This means EOF.
+				// We don't need to clean up the state; the handling from MultiplexedExchangePool is enough.
+				throw new EOFException();
+			received += portionSize;
+			writePos = (writePos + portionSize) % ringbufferSize;
+		}
+
+		long oldState = state.getAndUpdate(len, (state, received) -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_DATA -> State.of(State.Kind.OPEN, State.buffered(state) + received);
+			// we got shut down in the meantime; keep that state
+			case IO_EXCEPTION, CLOSED -> state;
+			// Only the reader thread causes EOF, and that's us.
+			case OUTPUT_EOF -> throw new IllegalStateException("became EOF during receive; this is a bug");
+		});
+		if(State.kind(oldState) == State.Kind.OPEN || State.kind(oldState) == State.Kind.WAITING_FOR_DATA)
+			bufferPool.bytesBuffered(len);
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_DATA)
+			waitingForDataSemaphore.release();
+	}
+
+	@Override
+	void eofReached()
+	{
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_DATA -> State.of(State.Kind.OUTPUT_EOF, State.buffered(state));
+			case OUTPUT_EOF, IO_EXCEPTION, CLOSED -> state;
+		});
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_DATA)
+			waitingForDataSemaphore.release();
+	}
+	@Override
+	void ioExceptionThrown()
+	{
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_DATA -> State.of(State.Kind.IO_EXCEPTION, 0);
+			// Bytes received before the EOF can still be read.
+			case OUTPUT_EOF, IO_EXCEPTION, CLOSED -> state;
+		});
+		if(State.kind(oldState) == State.Kind.OPEN)
+			bufferPool.bytesConsumed(State.buffered(oldState));
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_DATA)
+			waitingForDataSemaphore.release();
+	}
+
+	private <R> R throwClosed() throws ClosedException
+	{
+		throw new ClosedException();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closeWithoutSendingEOF())
+		{
+			multiplexer.writeInputEOF(exchangeId);
+			exchange.localInputClosed();
+		}
+	}
+	@Override
+	boolean closeWithoutSendingEOF()
+	{
+		long oldState = state.getAndSet(State.of(State.Kind.CLOSED, 0));
+		// Chunks aren't returned to the pool here because the reader thread might still be writing to one of them.
+		bufferPool.bytesConsumed(State.buffered(oldState));
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_DATA)
+			waitingForDataSemaphore.release();
+		return State.kind(oldState) != State.Kind.CLOSED;
+	}
+
+	private static final class State
+	{
+		private static final Kind[] KINDS = Kind.values();
+
+		private static long of(Kind kind, int buffered)
+		{
+			return AtomicPackedState.pack(kind.ordinal(), buffered);
+		}
+		private static Kind kind(long state)
+		{
+			return KINDS[AtomicPackedState.kindOrdinal(state)];
+		}
+		private static int buffered(long state)
+		{
+			return AtomicPackedState.data(state);
+		}
+
+		private static enum Kind
+		{
+			OPEN,
+			WAITING_FOR_DATA,
+			OUTPUT_EOF,
+			IO_EXCEPTION,
+			CLOSED;
+		}
+	}
+}
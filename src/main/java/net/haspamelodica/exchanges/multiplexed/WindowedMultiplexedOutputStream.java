@@ -0,0 +1,210 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+
+import net.haspamelodica.exchanges.util.ClosedException;
+
+/**
+ * The output stream of an exchange of a windowed {@link MultiplexedExchangePool}; see {@link MultiplexedExchangePoolConfig}.
+ * <p>
+ * Starts with the receive window as credit. Each sent byte uses up one byte of credit,
+ * and the other side's input stream returns credit once it has read the bytes.
+ * A write only has to wait if there's no credit left.
+ */
+class WindowedMultiplexedOutputStream extends AbstractMultiplexedOutputStream
+{
+	private final MultiplexedExchangePool	multiplexer;
+	private final MultiplexedExchange		exchange;
+	private final int						exchangeId;
+	private final int						receiveWindow;
+
+	private final AtomicPackedState	state;
+	private final Semaphore			waitingForCreditSemaphore;
+
+	WindowedMultiplexedOutputStream(MultiplexedExchangePool multiplexer, MultiplexedExchange exchange, int receiveWindow)
+	{
+		this.multiplexer = multiplexer;
+		this.exchange = exchange;
+		this.exchangeId = exchange.id();
+		this.receiveWindow = receiveWindow;
+
+		this.state = new AtomicPackedState(State.of(State.Kind.OPEN, receiveWindow));
+		this.waitingForCreditSemaphore = new Semaphore(0);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws UnexpectedResponseException, ClosedException, EOFException, InterruptedIOException, IOException
+	{
+		Objects.checkFromIndexSize(off, len, buf.length);
+
+		while(len != 0)
+		{
+			// The multiplexer splits this into frames of at most the maximum frame size.
+			long oldState = state.getAndUpdate(len, (state, wantedLen) -> switch(State.kind(state))
+			{
+				case OPEN -> State.credit(state) != 0
+						? State.of(State.Kind.OPEN, State.credit(state) - Math.min(wantedLen, State.credit(state)))
+						: State.of(State.Kind.WAITING_FOR_CREDIT, 0);
+				case WAITING_FOR_CREDIT, EOF, IO_EXCEPTION, CLOSED -> state;
+			});
+			switch(State.kind(oldState))
+			{
+				case OPEN ->
+				{
+					if(State.credit(oldState) != 0)
+					{
+						// The update function already took the credit for these bytes.
+						int lenToWrite = Math.min(len, State.credit(oldState));
+						multiplexer.writeBytes(exchange, buf, off, lenToWrite);
+						off += lenToWrite;
+						len -= lenToWrite;
+					} else
+						// The update function set the state to WAITING_FOR_CREDIT.
+						waitForCredit();
+				}
+				case WAITING_FOR_CREDIT -> throw new IOException("Another thread is currently writing");
+				case EOF -> throwEOF();
+				case IO_EXCEPTION -> multiplexer.throwIOException();
+				case CLOSED -> throwClosed();
+			}
+		}
+	}
+
+	private void waitForCredit() throws InterruptedIOException
+	{
+		try
+		{
+			waitingForCreditSemaphore.acquire();
+		} catch(InterruptedException e)
+		{
+			long oldState = state.getAndUpdate(state -> State.kind(state) == State.Kind.WAITING_FOR_CREDIT ? State.of(State.Kind.OPEN, 0) : state);
+			// If we weren't waiting anymore, whoever ended our wait releases a permit, or already did.
+			// That permit has to be consumed; otherwise, the next wait would return immediately
+			// while the state still is WAITING_FOR_CREDIT, which looks like another thread waiting.
+			if(State.kind(oldState) != State.Kind.WAITING_FOR_CREDIT)
+				waitingForCreditSemaphore.acquireUninterruptibly();
+			throw new InterruptedIOException();
+		}
+	}
+
+	@Override
+	void recordReadyForReceiving(int len) throws UnexpectedResponseException, IOException
+	{
+		if(len <= 0)
+			throw new UnexpectedResponseException("ready bytes len <= 0");
+
+		long oldState = state.getAndUpdate(len, (state, newCredit) -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_CREDIT -> State.of(State.Kind.OPEN, State.credit(state) + newCredit);
+			// we got shut down in the meantime; keep that state
+			case EOF, IO_EXCEPTION, CLOSED -> state;
+		});
+
+		switch(State.kind(oldState))
+		{
+			case OPEN ->
+			{
+				// nothing to do; already handled by update function.
+			}
+			case WAITING_FOR_CREDIT -> waitingForCreditSemaphore.release();
+			case EOF -> throw new UnexpectedResponseException("Got ready bytes although we are EOF");
+			case IO_EXCEPTION -> multiplexer.throwIOException();
+			case CLOSED ->
+			{
+				// ignore, we already sent the EOF
+			}
+		}
+
+		// Checking this after the update is fine: an UnexpectedResponseException shuts down the entire multiplexer anyway.
+		if(State.credit(oldState) + len > receiveWindow)
+			throw new UnexpectedResponseException("Got more credit than the receive window allows");
+	}
+
+	@Override
+	void eofReached()
+	{
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_CREDIT -> State.of(State.Kind.EOF, 0);
+			case EOF, IO_EXCEPTION, CLOSED -> state;
+		});
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_CREDIT)
+			waitingForCreditSemaphore.release();
+	}
+	@Override
+	void ioExceptionThrown()
+	{
+		long oldState = state.getAndUpdate(state -> switch(State.kind(state))
+		{
+			case OPEN, WAITING_FOR_CREDIT -> State.of(State.Kind.IO_EXCEPTION, 0);
+			case EOF, IO_EXCEPTION, CLOSED -> state;
+		});
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_CREDIT)
+			waitingForCreditSemaphore.release();
+	}
+
+	private <R> R throwEOF() throws EOFException
+	{
+		throw new EOFException("The corresponding input stream was closed");
+	}
+
+	private <R> R throwClosed() throws ClosedException
+	{
+		throw new ClosedException();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closeWithoutSendingEOF())
+		{
+			multiplexer.writeOutputEOF(exchangeId);
+			exchange.localOutputClosed();
+		}
+	}
+	@Override
+	boolean closeWithoutSendingEOF()
+	{
+		long oldState = state.getAndSet(State.of(State.Kind.CLOSED, 0));
+		if(State.kind(oldState) == State.Kind.WAITING_FOR_CREDIT)
+			waitingForCreditSemaphore.release();
+		return State.kind(oldState) != State.Kind.CLOSED;
+	}
+
+	private static final class State
+	{
+		private static final Kind[] KINDS = Kind.values();
+
+		private static long of(Kind kind, int credit)
+		{
+			return AtomicPackedState.pack(kind.ordinal(), credit);
+		}
+		private static Kind kind(long state)
+		{
+			return KINDS[AtomicPackedState.kindOrdinal(state)];
+		}
+		private static int credit(long state)
+		{
+			return AtomicPackedState.data(state);
+		}
+
+		private static enum Kind
+		{
+			OPEN,
+			WAITING_FOR_CREDIT,
+			EOF,
+			IO_EXCEPTION,
+			CLOSED;
+		}
+	}
+}
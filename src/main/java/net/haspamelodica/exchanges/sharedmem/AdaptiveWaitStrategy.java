@@ -0,0 +1,57 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+/**
+ * Spins for a budget which adapts to how long the other side of the stream usually takes to advance its position;
+ * see {@link WaitStrategy#adaptive(long, long)}.
+ * <p>
+ * After each wait, the budget is raised to twice the time the wait took, if spinning for that long would have been allowed.
+ * Otherwise, spinning couldn't have helped, so the budget is halved. Between these, the budget slowly decays.
+ * This way, a bursty stream spins just long enough to catch the next burst, and a mostly idle stream hardly spins at all.
+ */
+final class AdaptiveWaitStrategy implements WaitStrategy
+{
+	private final long	minSpinNanos;
+	private final long	maxSpinNanos;
+
+	// volatile in case this instance is used directly instead of through forStream()
+	private volatile long spinBudgetNanos;
+
+	AdaptiveWaitStrategy(long minSpinNanos, long maxSpinNanos)
+	{
+		if(minSpinNanos < 0 || maxSpinNanos < minSpinNanos)
+			throw new IllegalArgumentException("illegal spin bounds: " + minSpinNanos + " to " + maxSpinNanos);
+
+		this.minSpinNanos = minSpinNanos;
+		this.maxSpinNanos = maxSpinNanos;
+		this.spinBudgetNanos = maxSpinNanos;
+	}
+
+	@Override
+	public WaitStrategy forStream()
+	{
+		return new AdaptiveWaitStrategy(minSpinNanos, maxSpinNanos);
+	}
+
+	@Override
+	public boolean idle(int iteration, long busyWaitStartNanos)
+	{
+		Thread.onSpinWait();
+		return System.nanoTime() - busyWaitStartNanos < spinBudgetNanos;
+	}
+
+	@Override
+	public void waitEnded(boolean spinSucceeded, long spinNanos, long totalWaitNanos)
+	{
+		long spinBudgetNanos = this.spinBudgetNanos;
+		if(totalWaitNanos > maxSpinNanos)
+			spinBudgetNanos /= 2;
+		else
+			spinBudgetNanos = Math.max(spinBudgetNanos - spinBudgetNanos / 8, 2 * totalWaitNanos);
+		this.spinBudgetNanos = Math.max(minSpinNanos, Math.min(maxSpinNanos, spinBudgetNanos));
+	}
+
+	long spinBudgetNanos()
+	{
+		return spinBudgetNanos;
+	}
+}
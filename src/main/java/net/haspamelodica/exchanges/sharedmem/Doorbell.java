@@ -0,0 +1,224 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.haspamelodica.exchanges.Exchange;
+import net.haspamelodica.exchanges.util.ClosedException;
+
+/**
+ * Carries the notifications of all exchanges of a {@link SharedMemoryExchangePool} over a single slow exchange,
+ * so opening an exchange doesn't need any slow exchanges of its own.
+ * <p>
+ * Each record is a single int: the ID of the ringbuffer it is for, shifted left by one,
+ * with the lowest bit set for close records and unset for notifications.
+ * Both sides have exactly one stream per ringbuffer, so the ringbuffer ID is enough to find the stream a record is for.
+ * A dispatcher thread reads the records and wakes up the corresponding {@link Notifier}. It never writes,
+ * so it can't deadlock with the other side's dispatcher thread.
+ * <p>
+ * A record can arrive before the stream it is for has been created, for example the notification
+ * with which the writer of a new ringbuffer signals that it's initialized.
+ * So, a notifier is created by whichever comes first: its stream or the first record for it.
+ * It is forgotten once both sides closed it. No notification is sent after a close record,
+ * so no record can arrive for a forgotten notifier.
+ * <p>
+ * If the slow exchange reaches EOF or fails, all notifiers are treated as closed by the other side.
+ */
+final class Doorbell
+{
+	private static final int CLOSE_RECORD_BIT = 1;
+
+	private final Exchange			slowExchange;
+	private final DataInputStream	in;
+	private final Object			outLock;
+	private final DataOutputStream	out;
+
+	private final ConcurrentMap<Integer, DoorbellNotifier>	notifiers;
+	private final Thread									dispatcherThread;
+	private volatile boolean								dispatcherEnded;
+
+	Doorbell(Exchange slowExchange)
+	{
+		this.slowExchange = slowExchange;
+		this.in = new DataInputStream(slowExchange.in());
+		this.outLock = new Object();
+		this.out = new DataOutputStream(slowExchange.out());
+
+		this.notifiers = new ConcurrentHashMap<>();
+		this.dispatcherThread = new Thread(this::dispatcherThread, "Shared Memory Doorbell Dispatcher");
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+	}
+
+	/**
+	 * Returns the notifier for this side's stream of the given ringbuffer. Must be called at most once per ringbuffer.
+	 */
+	Notifier notifier(int ringbufferId)
+	{
+		return getOrCreateNotifier(ringbufferId);
+	}
+
+	private DoorbellNotifier getOrCreateNotifier(int ringbufferId)
+	{
+		DoorbellNotifier notifier = notifiers.computeIfAbsent(ringbufferId, DoorbellNotifier::new);
+		// The dispatcher thread sets dispatcherEnded before looking at the notifiers,
+		// so either it sees this notifier, or we see dispatcherEnded.
+		if(dispatcherEnded)
+			notifier.otherSideClosed();
+		return notifier;
+	}
+
+	private void dispatcherThread()
+	{
+		try
+		{
+			for(;;)
+			{
+				int record = in.readInt();
+				DoorbellNotifier notifier = getOrCreateNotifier(record >>> 1);
+				if((record & CLOSE_RECORD_BIT) == 0)
+					notifier.notificationArrived();
+				else
+					notifier.otherSideClosed();
+			}
+		} catch(IOException e)
+		{
+			// EOF or failure of the slow exchange. Either way, no more records will arrive.
+		} finally
+		{
+			dispatcherEnded = true;
+			notifiers.values().forEach(DoorbellNotifier::otherSideClosed);
+		}
+	}
+
+	/**
+	 * Must be called while holding {@link #outLock}.
+	 */
+	private void writeRecord(int ringbufferId, int closeRecordBit) throws IOException
+	{
+		out.writeInt(ringbufferId << 1 | closeRecordBit);
+		out.flush();
+	}
+
+	void close() throws IOException
+	{
+		// This also ends the dispatcher thread.
+		slowExchange.close();
+	}
+
+	private final class DoorbellNotifier implements Notifier
+	{
+		private final int ringbufferId;
+
+		// Each notification and each close releases one permit.
+		private final Semaphore		wakeups;
+		private final AtomicInteger	notifications;
+
+		// only written while holding outLock
+		private volatile boolean	localClosed;
+		private final AtomicBoolean	otherSideClosed;
+
+		private DoorbellNotifier(int ringbufferId)
+		{
+			this.ringbufferId = ringbufferId;
+
+			this.wakeups = new Semaphore(0);
+			this.notifications = new AtomicInteger();
+
+			this.otherSideClosed = new AtomicBoolean();
+		}
+
+		@Override
+		public void notifyOtherSide() throws IOException
+		{
+			synchronized(outLock)
+			{
+				// Checking this while holding outLock makes sure no notification is sent after the close record.
+				if(localClosed)
+					throw new ClosedException();
+				writeRecord(ringbufferId, 0);
+			}
+		}
+
+		@Override
+		public boolean waitForNotificationOrEOF() throws IOException
+		{
+			try
+			{
+				wakeups.acquire();
+			} catch(InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+
+			// Notifications which arrived before a close still count.
+			if(notifications.getAndUpdate(notifications -> notifications == 0 ? 0 : notifications - 1) != 0)
+				return false;
+
+			// We got woken up by a close. Pass the permit on, so that later waits don't block either.
+			wakeups.release();
+			if(localClosed)
+				throw new ClosedException();
+			if(otherSideClosed.get())
+				return true;
+			throw new IllegalStateException("impossible state; this is a bug");
+		}
+
+		private void notificationArrived()
+		{
+			notifications.incrementAndGet();
+			wakeups.release();
+		}
+
+		private void otherSideClosed()
+		{
+			if(otherSideClosed.getAndSet(true))
+				return;
+			wakeups.release();
+			forgetIfBothClosed();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			synchronized(outLock)
+			{
+				if(localClosed)
+					return;
+				localClosed = true;
+			}
+
+			try
+			{
+				// If the dispatcher thread ended, the slow exchange is unusable anyway.
+				if(!dispatcherEnded)
+					synchronized(outLock)
+					{
+						writeRecord(ringbufferId, CLOSE_RECORD_BIT);
+					}
+			} catch(IOException e)
+			{
+				// The other side closed its end of the slow exchange or the slow exchange failed.
+				// Either way, the other side's dispatcher thread ends and treats us as closed, so there's nothing left to do.
+			} finally
+			{
+				// This also wakes up a wait for a notification, which then fails.
+				wakeups.release();
+				forgetIfBothClosed();
+			}
+		}
+
+		private void forgetIfBothClosed()
+		{
+			if(localClosed && otherSideClosed.get())
+				notifiers.remove(ringbufferId, this);
+		}
+	}
+}
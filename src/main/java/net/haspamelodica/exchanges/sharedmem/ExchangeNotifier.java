@@ -0,0 +1,47 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.io.IOException;
+
+import net.haspamelodica.exchanges.Exchange;
+
+/**
+ * A {@link Notifier} using a slow exchange of its own. A notification is a single 0 byte, and EOF on the exchange means EOF.
+ */
+final class ExchangeNotifier implements Notifier
+{
+	private final Exchange slowExchange;
+
+	ExchangeNotifier(Exchange slowExchange)
+	{
+		this.slowExchange = slowExchange;
+	}
+
+	@Override
+	public void notifyOtherSide() throws IOException
+	{
+		slowExchange.out().write(0);
+		slowExchange.out().flush();
+	}
+
+	@Override
+	public boolean waitForNotificationOrEOF() throws IOException
+	{
+		int read = slowExchange.in().read();
+		if(read == 0)
+			return false;
+
+		// EOF on slowExchange means EOF.
+		if(read >= 0)
+			throw new IOException("Illegal notification byte: " + read);
+
+		// Now, we know that read < 0 and thus EOF has been reached.
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// This also wakes up a wait for a notification.
+		slowExchange.close();
+	}
+}
@@ -0,0 +1,43 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.io.IOException;
+
+import net.haspamelodica.exchanges.Exchange;
+import net.haspamelodica.exchanges.util.AutoCloseablePair;
+import net.haspamelodica.exchanges.util.IOAutoCloseable;
+
+/**
+ * Carries the notifications between the reader and the writer of a shared memory ringbuffer,
+ * which are used once busy waiting failed; see {@link SharedMemoryCommon}.
+ * <p>
+ * Each notification wakes up one wait of the other side. Closing makes the other side's waits return EOF,
+ * but only after all notifications sent before the close. Closing also wakes up the waits of this side, which then fail.
+ * <p>
+ * Notifying and waiting are only called by the thread currently reading or writing, but closing can happen concurrently.
+ */
+public interface Notifier extends IOAutoCloseable
+{
+	public void notifyOtherSide() throws IOException;
+
+	/**
+	 * Waits for a notification of the other side. Returns <code>true</code> on EOF, <code>false</code> otherwise.
+	 */
+	public boolean waitForNotificationOrEOF() throws IOException;
+
+	/**
+	 * Sends each notification as a single byte over the given exchange. Closing the notifier closes the exchange.
+	 */
+	public static Notifier overExchange(Exchange slowExchange)
+	{
+		return new ExchangeNotifier(slowExchange);
+	}
+
+	/**
+	 * Returns two notifiers connected to each other, for a ringbuffer whose reader and writer are in the same JVM.
+	 * Waiting parks the waiting thread, and notifying unparks it directly.
+	 */
+	public static AutoCloseablePair<Notifier, Notifier> openParkingPair()
+	{
+		return ParkingNotifier.openPair();
+	}
+}
@@ -0,0 +1,94 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.haspamelodica.exchanges.util.AutoCloseablePair;
+import net.haspamelodica.exchanges.util.ClosedException;
+
+/**
+ * A {@link Notifier} for a ringbuffer whose reader and writer are in the same JVM.
+ * Notifying counts up the other side's pending notifications and unparks the other side's waiting thread, if any.
+ * <p>
+ * A waiting thread publishes itself before checking for notifications, and a notifying thread
+ * counts up the notifications before looking for a waiting thread, so no notification can be missed:
+ * either the waiting thread sees the notification, or the notifying thread sees the waiting thread.
+ * Closing works the same way.
+ */
+final class ParkingNotifier implements Notifier
+{
+	private final AtomicInteger	notifications;
+	private volatile Thread		waitingThread;
+	private volatile boolean	closed;
+
+	private ParkingNotifier otherSide;
+
+	private ParkingNotifier()
+	{
+		this.notifications = new AtomicInteger();
+	}
+
+	static AutoCloseablePair<Notifier, Notifier> openPair()
+	{
+		ParkingNotifier a = new ParkingNotifier();
+		ParkingNotifier b = new ParkingNotifier();
+		a.otherSide = b;
+		b.otherSide = a;
+		return new AutoCloseablePair<>(a, b);
+	}
+
+	@Override
+	public void notifyOtherSide() throws IOException
+	{
+		if(closed)
+			throw new ClosedException();
+		otherSide.notifications.incrementAndGet();
+		otherSide.wakeUp();
+	}
+
+	@Override
+	public boolean waitForNotificationOrEOF() throws IOException
+	{
+		waitingThread = Thread.currentThread();
+		try
+		{
+			for(;;)
+			{
+				if(closed)
+					throw new ClosedException();
+
+				// Read this before the notifications, so that notifications sent before the close still count.
+				boolean otherSideClosed = otherSide.closed;
+				if(notifications.getAndUpdate(notifications -> notifications == 0 ? 0 : notifications - 1) != 0)
+					return false;
+				if(otherSideClosed)
+					return true;
+
+				LockSupport.park(this);
+				if(Thread.interrupted())
+					throw new InterruptedIOException();
+			}
+		} finally
+		{
+			waitingThread = null;
+		}
+	}
+
+	private void wakeUp()
+	{
+		Thread waitingThread = this.waitingThread;
+		if(waitingThread != null)
+			LockSupport.unpark(waitingThread);
+	}
+
+	@Override
+	public void close()
+	{
+		closed = true;
+		// This wakes up a wait of this side, which then fails, and a wait of the other side, which then returns EOF.
+		wakeUp();
+		otherSide.wakeUp();
+	}
+}
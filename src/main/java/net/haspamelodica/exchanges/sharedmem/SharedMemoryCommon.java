@@ -5,76 +5,147 @@ import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.OptionalInt;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.haspamelodica.exchanges.Exchange;
+import net.haspamelodica.exchanges.sharedmem.SpinGovernor.GovernedWaitStrategy;
 import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
+import net.haspamelodica.exchanges.util.AutoCloseablePair;
 import net.haspamelodica.exchanges.util.ClosedException;
 
 /**
- * Memory layout: The first eight bytes are (int-sized) data for the reader and writer, respectively;
- * the data after that is a ringbuffer.
+ * Memory layout: The memory is split into lines of {@link #CACHE_LINE_SIZE} bytes.
+ * The first line is the header, consisting of the ints {@link #LAYOUT_MAGIC}, {@link #LAYOUT_VERSION}, and the ringbuffer size.
+ * The second and third line contain only the (long-sized) data for the reader and writer, respectively;
+ * the lines after that are a ringbuffer.
+ * Each side only writes its own data, so with each data on its own line, a position update by one side
+ * doesn't invalidate the line the other side is spinning on, and neither do writes to the ringbuffer.
+ * The line size is bigger than the usual 64 bytes because some CPUs prefetch pairs of lines.
+ * The ringbuffer is only aligned to a line if the shared memory itself is.
+ * The shared memory must be aligned to at least 8 bytes for atomic accesses to the positions.
  * <p>
- * The LSBits (mask 0x7FFF_FFFF) of the reader / writer data are the reader / writer position in the ringbuffer;
- * the MSBit (mask 0x8000_0000) of the data is set if the OTHER side requests a notification over the {@link #slowExchange}.
+ * The writer initializes the header, and the reader checks it, so both sides notice if they disagree on the layout.
+ * <p>
+ * The LSBits (mask 0x7FFF_FFFF_FFFF_FFFF) of the reader / writer data are the reader / writer position;
+ * the MSBit (mask 0x8000_0000_0000_0000) of the data is set if the OTHER side requests a notification over the {@link #notifier}.
  * So, the MSBit of the reader data is set if the writer requests a notification, and the other way around.
  * The reasoning behind this is that after the busy wait fails for one side, it can do one last CAX on the other side's position,
  * and this way atomically check if there's data now as well as request a notification if there's not.
  * <p>
+ * Positions are sequence numbers: they count all bytes ever read / written and never wrap around.
+ * A position's index in the ringbuffer is the position modulo the ringbuffer size, which is a cheap mask for power-of-two sizes.
+ * The ringbuffer is empty if both positions are equal, and full if the writer is exactly the ringbuffer size ahead,
+ * so the full ringbuffer can be used. A published position also is the number of bytes transferred so far.
+ * <p>
  * Assumption: There's at most one thread reading and one thread writing at any given time.
  * "Reading" and "writing" means "being in one of the read/write method variants".
  * <p>
  * Invariant: The notification request bit of the reader/writer is only set during a read/write.
  * So, at the start of a read/write, the read/write can assume its notification request bit is unset.
+ * <p>
+ * Closing might unmap the shared memory, after which accessing it would crash the JVM,
+ * or give it back for reuse, after which a late access would read or write someone else's ringbuffer.
+ * So, reads and writes mark their accesses with {@link #beginAccess()} and {@link #endAccess()},
+ * and the shared memory is only released once it's closed and no access is running anymore.
+ * This costs two atomic updates per read or write, so it's only done if the shared memory
+ * {@link AutoCloseableByteBuffer#mustNotBeAccessedAfterClose() must not be accessed after closing}.
  */
 // public, not package-private:
 // only util class for SharedMemory[In|Out]putStream, but also contains BUFSIZE_OVERHEAD, which is interesting for users.
 // Instead, members are made package-private individually.
 public class SharedMemoryCommon
 {
-	static final int	OFFSET_READER_DATA	= 0;
-	static final int	OFFSET_WRITER_DATA	= 4;
-	static final int	OFFSET_DATA_START	= 8;
+	public static final int CACHE_LINE_SIZE = 128;
+
+	static final int	OFFSET_LAYOUT_MAGIC		= 0;
+	static final int	OFFSET_LAYOUT_VERSION	= 4;
+	static final int	OFFSET_BUFSIZE			= 8;
+	static final int	OFFSET_READER_DATA		= CACHE_LINE_SIZE;
+	static final int	OFFSET_WRITER_DATA		= 2 * CACHE_LINE_SIZE;
+	static final int	OFFSET_DATA_START		= 3 * CACHE_LINE_SIZE;
+
+	// "SHMX" in ASCII
+	static final int	LAYOUT_MAGIC	= 0x53484D58;
+	static final int	LAYOUT_VERSION	= 3;
 
 	public static final boolean	DEBUG_SLOW_EXCHANGE_FOR_SHAREDMEM	= false;
 	public static final int		BUFSIZE_OVERHEAD					= OFFSET_DATA_START;
 	public static final long	DEFAULT_BUSY_WAIT_TIMEOUT_NANOS		= 1_000_000;		// 1ms
 
-	// MIN_VALUE is 0x8000_0000, but 0x8000_0000 feels more hardcoded and arbitrary
-	static final int	REQ_NOTIF_BIT	= Integer.MIN_VALUE;
-	static final int	POS_MASK		= ~REQ_NOTIF_BIT;
+	public static final WaitStrategy DEFAULT_WAIT_STRATEGY = WaitStrategy.spin(DEFAULT_BUSY_WAIT_TIMEOUT_NANOS);
+
+	// MIN_VALUE is 0x8000_0000_0000_0000, but 0x8000_0000_0000_0000 feels more hardcoded and arbitrary
+	static final long	REQ_NOTIF_BIT	= Long.MIN_VALUE;
+	static final long	POS_MASK		= ~REQ_NOTIF_BIT;
+	// Positions are never negative, so this can't be confused with a real position.
+	static final long	EOF_POS			= -1;
 
-	private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final int CLOSED_BIT = Integer.MIN_VALUE;
+
+	private static final VarHandle	INT_HANDLE	= MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private static final VarHandle	LONG_HANDLE	= MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
 
 	private final ByteBuffer	sharedmem;
 	private final int			bufsize;
+	// -1 if bufsize is not a power of two
+	private final int			indexMask;
+
+	private final Notifier				notifier;
+	private final GovernedWaitStrategy	waitStrategy;
 
-	private final Exchange	slowExchange;
-	private final long		busyWaitTimeoutNanos;
+	// only written by the thread currently reading / writing
+	private volatile long	publishedPos;
+	private volatile long	waits;
+	private volatile long	spinSuccesses;
+	private volatile long	spinNanos;
 
 	private final AutoCloseableByteBuffer	autoCloseableSharedmem;
-	private final AtomicBoolean				closed;
+	private final boolean					countAccessors;
+	// The number of running accesses, with the CLOSED_BIT set once closed. Accesses are only counted if countAccessors is set.
+	private final AtomicInteger				accessorsAndClosed;
+	private final AtomicBoolean				sharedmemReleased;
 	private boolean							eof;
 
 	SharedMemoryCommon(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, boolean isWriter) throws IOException
 	{
-		this(slowExchange, autoCloseableSharedmem, isWriter, DEFAULT_BUSY_WAIT_TIMEOUT_NANOS);
+		this(slowExchange, autoCloseableSharedmem, isWriter, DEFAULT_WAIT_STRATEGY);
+	}
+	SharedMemoryCommon(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, boolean isWriter, WaitStrategy waitStrategy) throws IOException
+	{
+		this(Notifier.overExchange(DEBUG_SLOW_EXCHANGE_FOR_SHAREDMEM ? slowExchange.wrapStatistics(System.err, "slow") : slowExchange),
+				autoCloseableSharedmem, isWriter, waitStrategy);
+	}
+	SharedMemoryCommon(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, boolean isWriter, WaitStrategy waitStrategy) throws IOException
+	{
+		this(notifier, autoCloseableSharedmem, isWriter, waitStrategy, false);
 	}
-	SharedMemoryCommon(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, boolean isWriter, long busyWaitTimeoutNanos) throws IOException
+	/**
+	 * If the shared memory is already initialized with {@link #initialize(ByteBuffer)},
+	 * the header is only checked, and the reader doesn't wait for the writer.
+	 */
+	SharedMemoryCommon(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, boolean isWriter, WaitStrategy waitStrategy,
+			boolean alreadyInitialized) throws IOException
 	{
 		this.sharedmem = autoCloseableSharedmem.byteBuffer();
 		this.bufsize = sharedmem.capacity() - OFFSET_DATA_START;
 		if(bufsize <= 0)
 			throw new IllegalArgumentException("Buffer too small");
+		this.indexMask = Integer.bitCount(bufsize) == 1 ? bufsize - 1 : -1;
 
-		this.slowExchange = DEBUG_SLOW_EXCHANGE_FOR_SHAREDMEM ? slowExchange.wrapStatistics(System.err, "slow") : slowExchange;
-		this.busyWaitTimeoutNanos = busyWaitTimeoutNanos;
+		this.notifier = notifier;
+		// Busy waits of all streams together are limited by the SpinGovernor, regardless of their wait strategies.
+		this.waitStrategy = SpinGovernor.govern(waitStrategy.forStream());
 
 		this.autoCloseableSharedmem = autoCloseableSharedmem;
-		this.closed = new AtomicBoolean();
-
-		initAndSynchronize(isWriter);
+		this.countAccessors = autoCloseableSharedmem.mustNotBeAccessedAfterClose();
+		this.accessorsAndClosed = new AtomicInteger();
+		this.sharedmemReleased = new AtomicBoolean();
+
+		if(alreadyInitialized)
+			checkHeader();
+		else
+			initAndSynchronize(isWriter);
 	}
 
 	int bufsize()
@@ -83,52 +154,98 @@ public class SharedMemoryCommon
 	}
 
 	/**
-	 * Initializes both positions and waits until the other side is ready too.
+	 * Returns the index in the ringbuffer of the given position.
+	 */
+	int index(long pos)
+	{
+		return indexMask >= 0 ? (int) (pos & indexMask) : (int) (pos % bufsize);
+	}
+
+	/**
+	 * Initializes the header and both positions and waits until the other side is ready too.
 	 */
 	private void initAndSynchronize(boolean isWriter) throws IOException
 	{
 		if(isWriter)
 		{
-			getAndSetInt(OFFSET_READER_DATA, 0);
-			getAndSetInt(OFFSET_WRITER_DATA, 0);
+			initialize(sharedmem);
 			sendNotification();
-		} else
-			waitForNotificationOrEOF();
+		} else if(!waitForNotificationOrEOF())
+			checkHeader();
+	}
+	/**
+	 * Initializes the header and both positions of the given shared memory like a writer does.
+	 * This allows creating both streams without waiting for each other, as long as the shared memory
+	 * only becomes visible to the other side after this method returns.
+	 */
+	static void initialize(ByteBuffer sharedmem)
+	{
+		INT_HANDLE.setVolatile(sharedmem, OFFSET_LAYOUT_MAGIC, LAYOUT_MAGIC);
+		INT_HANDLE.setVolatile(sharedmem, OFFSET_LAYOUT_VERSION, LAYOUT_VERSION);
+		INT_HANDLE.setVolatile(sharedmem, OFFSET_BUFSIZE, sharedmem.capacity() - OFFSET_DATA_START);
+		LONG_HANDLE.setVolatile(sharedmem, OFFSET_READER_DATA, 0L);
+		LONG_HANDLE.setVolatile(sharedmem, OFFSET_WRITER_DATA, 0L);
+	}
+	/**
+	 * Opens both ends of a ringbuffer in the given shared memory, for a reader and a writer in this JVM.
+	 * The input stream of the returned exchange reads what its output stream writes.
+	 * The shared memory is initialized directly, and the streams wake each other up by parking; see {@link Notifier#openParkingPair()}.
+	 * So, unlike creating the two streams separately, this needs neither a second thread nor any slow exchanges.
+	 */
+	public static Exchange openPipe(ByteBuffer sharedmem, WaitStrategy waitStrategy) throws IOException
+	{
+		initialize(sharedmem);
+		AutoCloseablePair<Notifier, Notifier> notifiers = Notifier.openParkingPair();
+		AutoCloseableByteBuffer autoCloseableSharedmem = AutoCloseableByteBuffer.wrapNoCloseAction(sharedmem);
+		SharedMemoryInputStream in = new SharedMemoryInputStream(notifiers.a(), autoCloseableSharedmem, waitStrategy, true);
+		SharedMemoryOutputStream out = new SharedMemoryOutputStream(notifiers.b(), autoCloseableSharedmem, waitStrategy, true);
+		return Exchange.ofNoExtraCloseAction(in, out);
+	}
+	private void checkHeader() throws IOException
+	{
+		int magic = getInt(OFFSET_LAYOUT_MAGIC);
+		if(magic != LAYOUT_MAGIC)
+			throw new IOException("Shared memory not initialized by a compatible writer: magic " + Integer.toHexString(magic));
+		int version = getInt(OFFSET_LAYOUT_VERSION);
+		if(version != LAYOUT_VERSION)
+			throw new IOException("Shared memory layout version mismatch: writer uses " + version + ", reader uses " + LAYOUT_VERSION);
+		int writerBufsize = getInt(OFFSET_BUFSIZE);
+		if(writerBufsize != bufsize)
+			throw new IOException("Shared memory size mismatch: writer uses " + writerBufsize + ", reader uses " + bufsize);
+	}
+
+	/**
+	 * Rounds the given size up to a multiple of {@link #CACHE_LINE_SIZE}.
+	 * Shared memory blocks placed next to each other with sizes rounded like this stay aligned to lines
+	 * if the first block is aligned.
+	 */
+	public static int roundUpToCacheLines(int size)
+	{
+		return (size + CACHE_LINE_SIZE - 1) / CACHE_LINE_SIZE * CACHE_LINE_SIZE;
 	}
 
-	static record Positions(int ownPos, int otherPos)
-	{}
 	/**
 	 * This method assumes the {@link #REQ_NOTIF_BIT} is not set for the data at the given byte offset,
 	 * and ensures it's unset again when it returns.
 	 * Also, it assumes that the side sending the notification also unsets the {@link #REQ_NOTIF_BIT}.
 	 * <p>
-	 * The given forbidden delta must be positive.
-	 * <p>
 	 * Ensures that the other position is "valid",
-	 * which means that the difference from the own position to it is not the given forbidden delta;
+	 * which means that the difference from the given own position to it is not the given forbidden delta;
 	 * first with a busy wait and if that fails, by requesting a notification.
+	 * The own position doesn't have to be published yet.
 	 * <p>
-	 * This method handles being closed and EOF; an EOF is handled by returning null.
+	 * This method handles being closed and EOF; an EOF is handled by returning {@link #EOF_POS}.
+	 * Otherwise, the other position is returned.
 	 */
-	Positions ensureValidPositions(int ownDataByteOffset, int otherDataByteOffset, int forbiddenPosDelta)
-			throws ClosedException, IOException
+	long ensureValidOtherPos(long ownPos, int otherDataByteOffset, long forbiddenPosDelta) throws ClosedException, IOException
 	{
 		// We have to do this even if the fast path would succeed because we mustn't return any data after we get closed.
 		// That is not true for EOF, but this method only returns EOF after a previous EOF; it doesn't check for EOF by itself.
 		if(checkNotClosedAndGetPreviousEof())
-			return null;
-
-		// The notification bit of our data might get set to 1 by the other side, but the pos will only be changed by us.
-		// So, readerPos will stay up-to-date (assuming that there's only one thread currently reading).
-		int ownPos = getInt(ownDataByteOffset) & POS_MASK;
+			return EOF_POS;
 
 		// We know the REQ_NOTIF_BIT can't be set because of the invariant described in SharedMemoryCommon.
-		OptionalInt otherPosOpt = ensureValidPos(otherDataByteOffset, (ownPos + forbiddenPosDelta) % bufsize());
-		if(otherPosOpt.isEmpty())
-			return null;
-
-		return new Positions(ownPos, otherPosOpt.getAsInt());
+		return ensureValidPos(otherDataByteOffset, ownPos + forbiddenPosDelta);
 	}
 
 	/**
@@ -138,71 +255,122 @@ public class SharedMemoryCommon
 	 * <p>
 	 * Ensures that the pos in the data at the given offset is not equal to the given forbidden value;
 	 * first with a busy wait, and if that fails, by requesting a notification from the other side.
-	 * If an EOF occurs, an empty optional is returned,
+	 * If an EOF occurs, {@link #EOF_POS} is returned,
 	 * otherwise, the read pos is returned.
 	 */
-	private OptionalInt ensureValidPos(int byteOffset, int forbiddenPosValue) throws IOException
+	private long ensureValidPos(int byteOffset, long forbiddenPosValue) throws IOException
 	{
-		int pos = busyWaitForPos(byteOffset, forbiddenPosValue);
+		// Check once before starting the busy wait so that only actual waits are reported to the wait strategy.
+		long pos = getLong(byteOffset);
+		if(pos != forbiddenPosValue)
+		{
+			// Only reached when refreshing a cached position, so this doesn't cost anything per read or write.
+			waitStrategy.trafficSeen();
+			return pos;
+		}
+
+		long waitStart = System.nanoTime();
+		pos = busyWaitForPos(byteOffset, forbiddenPosValue, waitStart);
 
 		// The REQ_NOTIF_BIT does not mean a notification request here;
 		// instead, that bit is set by busyWaitForPosAssumeReqNotifBitUnset and means that the busy wait timed out.
 		if((pos & REQ_NOTIF_BIT) == 0)
+		{
 			// The REQ_NOTIF_BIT is not set, so the busy wait succeeded and we're done!
-			return OptionalInt.of(pos);
+			long waitNanos = System.nanoTime() - waitStart;
+			waitEnded(true, waitNanos, waitNanos);
+			return pos;
+		}
+		long spinNanos = System.nanoTime() - waitStart;
 
 		// Busy wait timed out. Atomically do the following:
 		// - Check one last time if the pos changed.
 		// - If it hasn't, the fast path failed, so request a notification.
 		// This can be done by a single CAX, with the expected value being the old pos without the REQ_NOTIF_BIT,
 		// and the new value being the old pos with the REQ_NOTIF_BIT.
-		pos = caxInt(byteOffset, pos & POS_MASK, pos);
+		pos = caxLong(byteOffset, pos & POS_MASK, pos);
 
 		if(pos != forbiddenPosValue)
+		{
 			// The pos is now not the forbidden value anymore, which means we can continue with the fastpath.
 			// Also, this means that the pos changed, so the CAX will have failed and thus not have set the REQ_NOTIF_BIT.
-			return OptionalInt.of(pos);
+			waitEnded(true, spinNanos, spinNanos);
+			return pos;
+		}
 
 		// The pos is still the forbidden value, so the fastpath failed.
 		// The CAX will have set the REQ_NOTIF_BIT already, so we can immediately wait for the notification.
 		if(waitForNotificationOrEOF())
-			return OptionalInt.empty();
+			return EOF_POS;
+		waitEnded(false, spinNanos, System.nanoTime() - waitStart);
 
 		// The notification has arrived! We don't even have to unset the REQ_NOTIF_BIT,
 		// because the other side will have done that for us.
 		// However, we do have to re-read the value.
-		return OptionalInt.of(getInt(byteOffset));
+		return getLong(byteOffset);
+	}
+
+	private void waitEnded(boolean spinSucceeded, long spinNanos, long totalWaitNanos)
+	{
+		// Only one thread writes these, so there's no need for atomic increments.
+		waits ++;
+		if(spinSucceeded)
+			spinSuccesses ++;
+		this.spinNanos += spinNanos;
+		waitStrategy.waitEnded(spinSucceeded, spinNanos, totalWaitNanos);
+	}
+
+	SpinStatistics spinStatistics()
+	{
+		return new SpinStatistics(waits, spinSuccesses, spinNanos);
 	}
 
 	/**
 	 * This method assumes the {@link #REQ_NOTIF_BIT} is not set for the data at the given byte offset.
 	 * <p>
 	 * Repeatedly reads the pos at the given offset and, if the pos is not equal to the given forbidden value, returns that pos.
-	 * If the {@link #busyWaitTimeoutNanos} elapses without the predicate getting fulfilled,
+	 * If the {@link #waitStrategy} gives up without the predicate getting fulfilled,
 	 * returns the last read pos with the {@link #REQ_NOTIF_BIT} set.
 	 */
-	private int busyWaitForPos(int byteOffset, int forbiddenPosValue)
+	private long busyWaitForPos(int byteOffset, long forbiddenPosValue, long start)
 	{
-		long start = System.nanoTime();
-		for(;;)
+		for(int iteration = 0;; iteration ++)
 		{
-			int data = getInt(byteOffset);
+			long data = getLong(byteOffset);
 			// Because REQ_NOTIF_BIT is not set (as per method contract), we know that data == pos.
 			if(data != forbiddenPosValue)
 				return data;
-			if(System.nanoTime() - start >= busyWaitTimeoutNanos)
+			if(!waitStrategy.idle(iteration, start))
 				return data | REQ_NOTIF_BIT;
 		}
 	}
 
-	void updatePosHandlingNotificationRequest(int byteOffset, int newPos) throws IOException
+	void updatePosHandlingNotificationRequest(int byteOffset, long newPos) throws IOException
 	{
+		publishedPos = newPos;
 		// Atomically update the pos and check if the other side requested a notification.
 		// No need for CAX; we want to unset the REQ_NOTIF_BIT either way, so getAndSet is enough.
-		if((getAndSetInt(byteOffset, newPos % bufsize()) & REQ_NOTIF_BIT) != 0)
+		if((getAndSetLong(byteOffset, newPos) & REQ_NOTIF_BIT) != 0)
 			sendNotification();
 	}
 
+	/**
+	 * Returns the pos at the given offset without the {@link #REQ_NOTIF_BIT}, without waiting.
+	 * Unlike {@link #ensureValidOtherPos(long, int, long)}, this doesn't check for being closed.
+	 */
+	long pos(int byteOffset)
+	{
+		return getLong(byteOffset) & POS_MASK;
+	}
+
+	/**
+	 * Returns the own position last published, which is the number of bytes read / written so far.
+	 */
+	long publishedPos()
+	{
+		return publishedPos;
+	}
+
 	byte getDataByte(int byteOffsetInData)
 	{
 		// It's not possible to create a VarHandle for byte.
@@ -223,53 +391,92 @@ public class SharedMemoryCommon
 		// It's not possible to create a VarHandle for byte.
 		sharedmem.put(byteOffsetInData + OFFSET_DATA_START, buf, off, len);
 	}
+	ByteBuffer dataSlice(int byteOffsetInData, int len)
+	{
+		return sharedmem.slice(byteOffsetInData + OFFSET_DATA_START, len);
+	}
 
 	private int getInt(int byteOffset)
 	{
 		return (int) INT_HANDLE.getVolatile(sharedmem, byteOffset);
 	}
-	private int getAndSetInt(int byteOffset, int newValue)
+	private long getLong(int byteOffset)
 	{
-		return (int) INT_HANDLE.getAndSet(sharedmem, byteOffset, newValue);
+		return (long) LONG_HANDLE.getVolatile(sharedmem, byteOffset);
 	}
-	private int caxInt(int byteOffset, int expectedValue, int newValue)
+	private long getAndSetLong(int byteOffset, long newValue)
 	{
-		return (int) INT_HANDLE.compareAndExchange(sharedmem, byteOffset, expectedValue, newValue);
+		return (long) LONG_HANDLE.getAndSet(sharedmem, byteOffset, newValue);
+	}
+	private long caxLong(int byteOffset, long expectedValue, long newValue)
+	{
+		return (long) LONG_HANDLE.compareAndExchange(sharedmem, byteOffset, expectedValue, newValue);
 	}
 
 	private void sendNotification() throws IOException
 	{
-		slowExchange.out().write(0);
-		slowExchange.out().flush();
+		notifier.notifyOtherSide();
 	}
 	private boolean waitForNotificationOrEOF() throws IOException
 	{
-		int read = slowExchange.in().read();
-		if(read == 0)
+		if(!notifier.waitForNotificationOrEOF())
 			return false;
 
-		// EOF on slowExchange means EOF.
-		if(read >= 0)
-			throw new IOException("Illegal notification byte: " + read);
-
-		// Now, we know that read < 0 and thus EOF has been reached.
 		eof = true;
 		return true;
 	}
 
 	private boolean checkNotClosedAndGetPreviousEof() throws ClosedException
 	{
-		if(closed.get())
-			throw new ClosedException();
+		checkNotClosed();
 		return eof;
 	}
+	void checkNotClosed() throws ClosedException
+	{
+		if((accessorsAndClosed.get() & CLOSED_BIT) != 0)
+			throw new ClosedException();
+	}
+
+	/**
+	 * Must be called before accessing the shared memory. Each successful call must be followed by a call to {@link #endAccess()}.
+	 */
+	void beginAccess() throws ClosedException, IOException
+	{
+		if(!countAccessors)
+			checkNotClosed();
+		else if((accessorsAndClosed.getAndIncrement() & CLOSED_BIT) != 0)
+		{
+			endAccess();
+			throw new ClosedException();
+		}
+	}
+	void endAccess() throws IOException
+	{
+		if(countAccessors && accessorsAndClosed.decrementAndGet() == CLOSED_BIT)
+			// We were closed during our access, and we were the last one accessing.
+			releaseSharedmem();
+	}
 
 	void close() throws IOException
 	{
-		if(closed.getAndSet(true))
+		int oldAccessorsAndClosed = accessorsAndClosed.getAndUpdate(accessorsAndClosed -> accessorsAndClosed | CLOSED_BIT);
+		if((oldAccessorsAndClosed & CLOSED_BIT) != 0)
 			return;
 
-		autoCloseableSharedmem.close();
-		slowExchange.close();
+		try
+		{
+			// This also wakes up accesses waiting for a notification.
+			notifier.close();
+		} finally
+		{
+			if(oldAccessorsAndClosed == 0)
+				releaseSharedmem();
+		}
+	}
+	private void releaseSharedmem() throws IOException
+	{
+		// A beginAccess failing because we're closed can lead here a second time.
+		if(!sharedmemReleased.getAndSet(true))
+			autoCloseableSharedmem.close();
 	}
 }
@@ -0,0 +1,193 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.BUFSIZE_OVERHEAD;
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.CACHE_LINE_SIZE;
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.roundUpToCacheLines;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
+
+/**
+ * The control region at the start of the shared file of a {@link SharedMemoryExchangePool}.
+ * <p>
+ * Memory layout: The first line is the header, consisting of the ints {@link #LAYOUT_MAGIC}, {@link #LAYOUT_VERSION},
+ * the size of each ringbuffer of an exchange including its overhead, and the number of slots.
+ * The second line only contains the head of the free list, which is written by both sides.
+ * The following lines are the slot table, which has two ints per slot: its state and the next slot in the free list.
+ * After that comes the ringbuffer of the open request queue; see {@link SharedMemoryExchangePool}.
+ * Each slot stands for the two ringbuffers of an exchange, which follow the control region.
+ * <p>
+ * A slot is either {@link #FREE} or in use. Allocating a slot sets its state to {@link #ALLOCATED}.
+ * Each of the four streams using the ringbuffers of a slot adds one to the state once it has been closed,
+ * so the stream releasing last frees the slot again, and no stream can still access a slot which is allocated anew.
+ * <p>
+ * Free slots form a lock-free stack. The head and the links store slot indices plus one, so that 0 ends the list.
+ * Both sides push freed slots, but only the server pops, so there is no ABA problem:
+ * nobody else can pop the head and push it again while the server is popping it.
+ * The stack starts out in slot order, and the slot freed last is reused first,
+ * so the slots used are never more than the most exchanges open at the same time.
+ * The shared file itself is mapped and preallocated for all slots up front; see {@link SharedMemoryExchangePool}.
+ */
+final class SharedMemoryControlRegion
+{
+	private static final int	OFFSET_LAYOUT_MAGIC		= 0;
+	private static final int	OFFSET_LAYOUT_VERSION	= 4;
+	private static final int	OFFSET_RINGBUFFER_SIZE	= 8;
+	private static final int	OFFSET_SLOT_COUNT		= 12;
+	private static final int	OFFSET_FREE_LIST_HEAD	= CACHE_LINE_SIZE;
+	private static final int	OFFSET_SLOT_TABLE		= 2 * CACHE_LINE_SIZE;
+
+	private static final int	SLOT_OFFSET_STATE		= 0;
+	private static final int	SLOT_OFFSET_NEXT_FREE	= 4;
+	private static final int	SLOT_SIZE				= 8;
+
+	// "SHMP" in ASCII
+	private static final int	LAYOUT_MAGIC	= 0x53484D50;
+	private static final int	LAYOUT_VERSION	= 2;
+
+	private static final int	FREE				= 0;
+	private static final int	ALLOCATED			= 1;
+	private static final int	STREAMS_PER_SLOT	= 4;
+	private static final int	END_OF_FREE_LIST	= 0;
+
+	private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer	control;
+	private final int			ringbufferSize;
+	private final int			slotCount;
+
+	/**
+	 * The control region must be at least {@link #size(int)} bytes big.
+	 */
+	SharedMemoryControlRegion(ByteBuffer control, int ringbufferSize, int slotCount)
+	{
+		this.control = control;
+		this.ringbufferSize = ringbufferSize;
+		this.slotCount = slotCount;
+	}
+
+	/**
+	 * Returns the size of a control region with the given number of slots.
+	 * It's a multiple of {@link SharedMemoryCommon#CACHE_LINE_SIZE}, so the ringbuffers following it stay aligned.
+	 */
+	static int size(int slotCount)
+	{
+		return openRequestQueueOffset(slotCount) + openRequestQueueSize(slotCount);
+	}
+	private static int openRequestQueueOffset(int slotCount)
+	{
+		return OFFSET_SLOT_TABLE + roundUpToCacheLines(slotCount * SLOT_SIZE);
+	}
+	private static int openRequestQueueSize(int slotCount)
+	{
+		// Each open request is a slot index, and each slot can only be requested once before it's freed again,
+		// so the queue can never be full.
+		return roundUpToCacheLines(BUFSIZE_OVERHEAD + slotCount * Integer.BYTES);
+	}
+
+	/**
+	 * Called by the server before the client can access the control region.
+	 */
+	void initialize()
+	{
+		INT_HANDLE.setVolatile(control, OFFSET_LAYOUT_MAGIC, LAYOUT_MAGIC);
+		INT_HANDLE.setVolatile(control, OFFSET_LAYOUT_VERSION, LAYOUT_VERSION);
+		INT_HANDLE.setVolatile(control, OFFSET_RINGBUFFER_SIZE, ringbufferSize);
+		INT_HANDLE.setVolatile(control, OFFSET_SLOT_COUNT, slotCount);
+		for(int slot = 0; slot < slotCount; slot ++)
+		{
+			INT_HANDLE.setVolatile(control, slotOffset(slot) + SLOT_OFFSET_STATE, FREE);
+			INT_HANDLE.setVolatile(control, slotOffset(slot) + SLOT_OFFSET_NEXT_FREE, slot + 1 < slotCount ? slot + 2 : END_OF_FREE_LIST);
+		}
+		INT_HANDLE.setVolatile(control, OFFSET_FREE_LIST_HEAD, slotCount > 0 ? 1 : END_OF_FREE_LIST);
+	}
+
+	/**
+	 * Called by the client once the server initialized the control region.
+	 */
+	void checkHeader() throws IOException
+	{
+		int magic = (int) INT_HANDLE.getVolatile(control, OFFSET_LAYOUT_MAGIC);
+		if(magic != LAYOUT_MAGIC)
+			throw new IOException("Shared file not initialized by a compatible server: magic " + Integer.toHexString(magic));
+		int version = (int) INT_HANDLE.getVolatile(control, OFFSET_LAYOUT_VERSION);
+		if(version != LAYOUT_VERSION)
+			throw new IOException("Shared file layout version mismatch: server uses " + version + ", client uses " + LAYOUT_VERSION);
+		int serverRingbufferSize = (int) INT_HANDLE.getVolatile(control, OFFSET_RINGBUFFER_SIZE);
+		if(serverRingbufferSize != ringbufferSize)
+			throw new IOException("Ringbuffer size mismatch: server uses " + serverRingbufferSize + ", client uses " + ringbufferSize);
+		int serverSlotCount = (int) INT_HANDLE.getVolatile(control, OFFSET_SLOT_COUNT);
+		if(serverSlotCount != slotCount)
+			throw new IOException("Slot count mismatch: server uses " + serverSlotCount + ", client uses " + slotCount);
+	}
+
+	AutoCloseableByteBuffer openRequestQueue()
+	{
+		// The open request queue lives as long as the control region, which is never unmapped explicitly.
+		return AutoCloseableByteBuffer.wrapNoCloseAction(control.slice(openRequestQueueOffset(slotCount), openRequestQueueSize(slotCount)));
+	}
+
+	/**
+	 * Pops a slot off the free list. Only the server allocates slots, and only one thread at a time.
+	 */
+	int allocateSlot() throws IOException
+	{
+		for(;;)
+		{
+			int head = (int) INT_HANDLE.getVolatile(control, OFFSET_FREE_LIST_HEAD);
+			if(head == END_OF_FREE_LIST)
+				throw new IOException("No free slot; at most " + slotCount + " exchanges can be open at the same time");
+			int slot = head - 1;
+			// The client can write the free list as well.
+			checkSlot(slot);
+
+			// Nobody else pops, so the head stays in the free list until we pop it, and its link doesn't change.
+			int next = (int) INT_HANDLE.getVolatile(control, slotOffset(slot) + SLOT_OFFSET_NEXT_FREE);
+			if((int) INT_HANDLE.compareAndExchange(control, OFFSET_FREE_LIST_HEAD, head, next) == head)
+			{
+				INT_HANDLE.setVolatile(control, slotOffset(slot) + SLOT_OFFSET_STATE, ALLOCATED);
+				return slot;
+			}
+			// A freed slot has been pushed in the meantime. Try again.
+		}
+	}
+
+	/**
+	 * Called once by each of the four streams using the given slot, after they have been closed.
+	 * The last one pushes the slot onto the free list.
+	 */
+	void streamReleasedSlot(int slot)
+	{
+		int stateOffset = slotOffset(slot) + SLOT_OFFSET_STATE;
+		if((int) INT_HANDLE.getAndAdd(control, stateOffset, 1) + 1 != ALLOCATED + STREAMS_PER_SLOT)
+			return;
+
+		INT_HANDLE.setVolatile(control, stateOffset, FREE);
+		for(;;)
+		{
+			int head = (int) INT_HANDLE.getVolatile(control, OFFSET_FREE_LIST_HEAD);
+			INT_HANDLE.setVolatile(control, slotOffset(slot) + SLOT_OFFSET_NEXT_FREE, head);
+			if((int) INT_HANDLE.compareAndExchange(control, OFFSET_FREE_LIST_HEAD, head, slot + 1) == head)
+				return;
+		}
+	}
+
+	/**
+	 * Slot indices read from shared memory have to be checked, as the other side could have written anything there.
+	 */
+	void checkSlot(int slot) throws IOException
+	{
+		if(slot < 0 || slot >= slotCount)
+			throw new IOException("Illegal slot: " + slot);
+	}
+
+	private static int slotOffset(int slot)
+	{
+		return OFFSET_SLOT_TABLE + slot * SLOT_SIZE;
+	}
+}
@@ -1,14 +1,17 @@
 package net.haspamelodica.exchanges.sharedmem;
 
-import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.DEFAULT_BUSY_WAIT_TIMEOUT_NANOS;
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.DEFAULT_WAIT_STRATEGY;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import net.haspamelodica.exchanges.Exchange;
@@ -16,16 +19,59 @@ import net.haspamelodica.exchanges.ExchangePool;
 import net.haspamelodica.exchanges.SimpleExchangePool;
 import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
 
+/**
+ * Opens exchanges whose directions are ringbuffers in a file shared by both sides; see {@link SharedMemoryCommon}.
+ * Both sides have to create the same number of exchanges, and the n-th exchange of one side is connected to the n-th exchange of the other side.
+ * <p>
+ * Exchanges are opened in shared memory, through the {@link SharedMemoryControlRegion} at the start of the shared file:
+ * The server allocates a free slot, initializes both of its ringbuffers, and appends the slot index to the open request queue,
+ * which is a ringbuffer in the control region as well. It can use the exchange immediately, without waiting for the client.
+ * The client takes the next slot index from the open request queue. So, opening an exchange needs no round trip,
+ * and the slow exchange pool is only used to wake up a side sleeping in a wait.
+ * <p>
+ * Those wake-ups are carried by a single slow exchange for all exchanges, the {@link Doorbell},
+ * which both sides open together with the control region when creating their first exchange.
+ * A ringbuffer's ID for the doorbell is derived from its direction and the sequence number of its exchange,
+ * which is the same on both sides because the client takes the slots in the order the server requested them.
+ * Unlike the slot, it isn't reused immediately, so records for a closed exchange can't be mistaken for records of a new one.
+ * <p>
+ * The shared file is sized for a fixed number of slots, and both sides map all of it when opening the control region,
+ * so opening an exchange only slices its ringbuffers out of the existing mappings and needs no system calls.
+ * Optionally, the mappings are prefaulted as well, so the first messages of an exchange don't take page faults.
+ * Both sides have to use the same number of slots.
+ */
 public class SharedMemoryExchangePool extends SimpleExchangePool
 {
-	public static final int DEFAULT_BUFSIZE_PER_EXCHANGE_DIRECTION = 4096;
+	public static final int	DEFAULT_BUFSIZE_PER_EXCHANGE_DIRECTION	= 4096;
+	public static final int	DEFAULT_MAX_OPEN_EXCHANGES				= 1024;
+	// Keeps the control region's size an int.
+	public static final int	MAX_MAX_OPEN_EXCHANGES					= 1 << 24;
+
+	private static final int	CLIENT_TO_SERVER					= 0;
+	private static final int	SERVER_TO_CLIENT					= 1;
+	private static final int	OPEN_REQUEST_QUEUE_RINGBUFFER_ID	= 0;
+	private static final int	FIRST_EXCHANGE_RINGBUFFER_ID		= 1;
+	// Keeps ringbuffer IDs positive.
+	private static final int	EXCHANGE_SEQUENCE_MASK				= (1 << 29) - 1;
+	private static final long	MAX_MAPPING_SIZE					= Integer.MAX_VALUE;
 
 	private final ExchangePool	slowExchangePool;
 	private final FileChannel	sharedFileChannel;
 	private final boolean		isServer;
 	private final int			bufsizePerExchangeDirectionIncludingOverhead;
-	private final long			busyWaitTimeoutNanos;
-	private final AtomicInteger	nextMappingPosition;
+	private final WaitStrategy	waitStrategy;
+	private final int			maxOpenExchanges;
+	private final boolean		prefault;
+	private final int			slotsPerChunk;
+
+	private final Object				openLock;
+	// only accessed while holding openLock
+	private Doorbell					doorbell;
+	private SharedMemoryControlRegion	control;
+	private DataOutputStream			openRequestsOut;
+	private DataInputStream				openRequestsIn;
+	private int							nextExchangeSequence;
+	private ByteBuffer[]				slotChunks;
 
 	public SharedMemoryExchangePool(ExchangePool slowExchangePool, Path sharedFile, boolean isServer,
 			OpenOption... extraOpenOptions) throws IOException
@@ -35,23 +81,57 @@ public class SharedMemoryExchangePool extends SimpleExchangePool
 	public SharedMemoryExchangePool(ExchangePool slowExchangePool, Path sharedFile, boolean isServer, int bufsizePerExchangeDirection,
 			OpenOption... extraOpenOptions) throws IOException
 	{
-		this(slowExchangePool, sharedFile, isServer, bufsizePerExchangeDirection, DEFAULT_BUSY_WAIT_TIMEOUT_NANOS, extraOpenOptions);
+		this(slowExchangePool, sharedFile, isServer, bufsizePerExchangeDirection, DEFAULT_WAIT_STRATEGY, extraOpenOptions);
 	}
 	public SharedMemoryExchangePool(ExchangePool slowExchangePool, Path sharedFile, boolean isServer, int bufsizePerExchangeDirection,
 			long busyWaitTimeoutNanos, OpenOption... extraOpenOptions) throws IOException
+	{
+		this(slowExchangePool, sharedFile, isServer, bufsizePerExchangeDirection, WaitStrategy.spin(busyWaitTimeoutNanos), extraOpenOptions);
+	}
+	public SharedMemoryExchangePool(ExchangePool slowExchangePool, Path sharedFile, boolean isServer, int bufsizePerExchangeDirection,
+			WaitStrategy waitStrategy, OpenOption... extraOpenOptions) throws IOException
+	{
+		this(slowExchangePool, sharedFile, isServer, bufsizePerExchangeDirection, waitStrategy, DEFAULT_MAX_OPEN_EXCHANGES, false, extraOpenOptions);
+	}
+	public SharedMemoryExchangePool(ExchangePool slowExchangePool, Path sharedFile, boolean isServer, int bufsizePerExchangeDirection,
+			WaitStrategy waitStrategy, int maxOpenExchanges, boolean prefault, OpenOption... extraOpenOptions) throws IOException
 	{
 		this(slowExchangePool, FileChannel.open(sharedFile, Stream.concat(Stream.of(StandardOpenOption.READ, StandardOpenOption.WRITE),
-				Stream.of(extraOpenOptions)).toArray(OpenOption[]::new)), isServer, bufsizePerExchangeDirection, busyWaitTimeoutNanos);
+				Stream.of(extraOpenOptions)).toArray(OpenOption[]::new)), isServer, bufsizePerExchangeDirection, waitStrategy,
+				maxOpenExchanges, prefault);
 	}
 	public SharedMemoryExchangePool(ExchangePool slowExchangePool, FileChannel sharedFileChannel, boolean isServer,
 			int bufsizePerExchangeDirection, long busyWaitTimeoutNanos)
 	{
+		this(slowExchangePool, sharedFileChannel, isServer, bufsizePerExchangeDirection, WaitStrategy.spin(busyWaitTimeoutNanos));
+	}
+	public SharedMemoryExchangePool(ExchangePool slowExchangePool, FileChannel sharedFileChannel, boolean isServer,
+			int bufsizePerExchangeDirection, WaitStrategy waitStrategy)
+	{
+		this(slowExchangePool, sharedFileChannel, isServer, bufsizePerExchangeDirection, waitStrategy, DEFAULT_MAX_OPEN_EXCHANGES, false);
+	}
+	/**
+	 * The wait strategy is used by all exchanges of this pool; see {@link WaitStrategy}.
+	 * <p>
+	 * The shared file is sized and mapped for <code>maxOpenExchanges</code> exchanges being open at the same time;
+	 * the other side has to use the same number. If <code>prefault</code> is set, all pages of the shared file
+	 * are touched when creating the first exchange, which takes longer but avoids page faults later on.
+	 */
+	public SharedMemoryExchangePool(ExchangePool slowExchangePool, FileChannel sharedFileChannel, boolean isServer,
+			int bufsizePerExchangeDirection, WaitStrategy waitStrategy, int maxOpenExchanges, boolean prefault)
+	{
+		if(maxOpenExchanges < 1 || maxOpenExchanges > MAX_MAX_OPEN_EXCHANGES)
+			throw new IllegalArgumentException("maxOpenExchanges has to be between 1 and " + MAX_MAX_OPEN_EXCHANGES + ": " + maxOpenExchanges);
 		this.slowExchangePool = slowExchangePool;
 		this.sharedFileChannel = sharedFileChannel;
 		this.isServer = isServer;
-		this.bufsizePerExchangeDirectionIncludingOverhead = SharedMemoryCommon.BUFSIZE_OVERHEAD + bufsizePerExchangeDirection;
-		this.busyWaitTimeoutNanos = busyWaitTimeoutNanos;
-		this.nextMappingPosition = new AtomicInteger();
+		// Keeps all ringbuffers aligned to cache lines; the file is aligned to pages.
+		this.bufsizePerExchangeDirectionIncludingOverhead = SharedMemoryCommon.roundUpToCacheLines(SharedMemoryCommon.BUFSIZE_OVERHEAD + bufsizePerExchangeDirection);
+		this.waitStrategy = waitStrategy;
+		this.maxOpenExchanges = maxOpenExchanges;
+		this.prefault = prefault;
+		this.slotsPerChunk = (int) Math.min(maxOpenExchanges, MAX_MAPPING_SIZE / (2L * bufsizePerExchangeDirectionIncludingOverhead));
+		this.openLock = new Object();
 		addCloseAction(slowExchangePool::close);
 		addCloseAction(sharedFileChannel::close);
 	}
@@ -59,19 +139,127 @@ public class SharedMemoryExchangePool extends SimpleExchangePool
 	@Override
 	protected Exchange createExchangeInterruptible() throws IOException, InterruptedException
 	{
-		// the null value will never be used, but makes the compiler happy
-		SharedMemoryInputStream in = null;
+		synchronized(openLock)
+		{
+			if(control == null)
+				openControlRegion();
+			return isServer ? requestExchange() : acceptExchange();
+		}
+	}
+
+	private void openControlRegion() throws IOException
+	{
+		// Both sides open the doorbell together with their first exchange, so its slow exchange is the first one of each side.
+		doorbell = new Doorbell(slowExchangePool.createNewExchange());
+		addCloseAction(doorbell::close);
+
+		// Neither the control region nor the slot chunks are unmapped explicitly
+		// because streams access them until they're released, even after we're closed.
+		SharedMemoryControlRegion control = new SharedMemoryControlRegion(map(0, SharedMemoryControlRegion.size(maxOpenExchanges)),
+				bufsizePerExchangeDirectionIncludingOverhead, maxOpenExchanges);
+		mapSlotChunks();
+		Notifier openRequestQueueNotifier = doorbell.notifier(OPEN_REQUEST_QUEUE_RINGBUFFER_ID);
 		if(isServer)
-			in = new SharedMemoryInputStream(slowExchangePool.createNewExchange(), nextMapping(), busyWaitTimeoutNanos);
-		SharedMemoryOutputStream out = new SharedMemoryOutputStream(slowExchangePool.createNewExchange(), nextMapping(), busyWaitTimeoutNanos);
-		if(!isServer)
-			in = new SharedMemoryInputStream(slowExchangePool.createNewExchange(), nextMapping(), busyWaitTimeoutNanos);
+		{
+			// The client only accesses the control region after the open request queue signalled that it's initialized.
+			control.initialize();
+			SharedMemoryOutputStream out = new SharedMemoryOutputStream(openRequestQueueNotifier, control.openRequestQueue(), waitStrategy);
+			addCloseAction(out::close);
+			openRequestsOut = new DataOutputStream(out);
+		} else
+		{
+			SharedMemoryInputStream in = new SharedMemoryInputStream(openRequestQueueNotifier, control.openRequestQueue(), waitStrategy);
+			addCloseAction(in::close);
+			control.checkHeader();
+			openRequestsIn = new DataInputStream(in);
+		}
+		this.control = control;
+	}
+
+	/**
+	 * Mapping a buffer is limited to 2GB, so the slots are mapped in chunks of as many slots as fit.
+	 * With the default sizes, there's only one chunk.
+	 */
+	private void mapSlotChunks() throws IOException
+	{
+		long slotSize = 2L * bufsizePerExchangeDirectionIncludingOverhead;
+		long slotsStart = SharedMemoryControlRegion.size(maxOpenExchanges);
+		ByteBuffer[] slotChunks = new ByteBuffer[(maxOpenExchanges + slotsPerChunk - 1) / slotsPerChunk];
+		for(int chunk = 0; chunk < slotChunks.length; chunk ++)
+		{
+			int firstSlot = chunk * slotsPerChunk;
+			int chunkSlots = Math.min(slotsPerChunk, maxOpenExchanges - firstSlot);
+			slotChunks[chunk] = map(slotsStart + firstSlot * slotSize, chunkSlots * slotSize);
+		}
+		this.slotChunks = slotChunks;
+	}
+
+	/**
+	 * Mapping beyond the end of the file grows it, so this also preallocates the shared file.
+	 */
+	private MappedByteBuffer map(long position, long size) throws IOException
+	{
+		MappedByteBuffer mapping = sharedFileChannel.map(MapMode.READ_WRITE, position, size);
+		if(prefault)
+			mapping.load();
+		return mapping;
+	}
+
+	private Exchange requestExchange() throws IOException
+	{
+		int slot = control.allocateSlot();
+		AutoCloseableByteBuffer inRingbuffer = ringbuffer(slot, CLIENT_TO_SERVER);
+		AutoCloseableByteBuffer outRingbuffer = ringbuffer(slot, SERVER_TO_CLIENT);
+		SharedMemoryCommon.initialize(inRingbuffer.byteBuffer());
+		SharedMemoryCommon.initialize(outRingbuffer.byteBuffer());
+
+		int exchangeSequence = nextExchangeSequence();
+		SharedMemoryInputStream in = new SharedMemoryInputStream(doorbell.notifier(ringbufferId(exchangeSequence, CLIENT_TO_SERVER)),
+				inRingbuffer, waitStrategy, true);
+		SharedMemoryOutputStream out = new SharedMemoryOutputStream(doorbell.notifier(ringbufferId(exchangeSequence, SERVER_TO_CLIENT)),
+				outRingbuffer, waitStrategy, true);
+
+		// Only now, after the ringbuffers are initialized, the client may use the slot.
+		openRequestsOut.writeInt(slot);
+		openRequestsOut.flush();
+		return Exchange.ofNoExtraCloseAction(in, out);
+	}
+
+	private Exchange acceptExchange() throws IOException
+	{
+		int slot = openRequestsIn.readInt();
+		control.checkSlot(slot);
+
+		int exchangeSequence = nextExchangeSequence();
+		SharedMemoryInputStream in = new SharedMemoryInputStream(doorbell.notifier(ringbufferId(exchangeSequence, SERVER_TO_CLIENT)),
+				ringbuffer(slot, SERVER_TO_CLIENT), waitStrategy, true);
+		SharedMemoryOutputStream out = new SharedMemoryOutputStream(doorbell.notifier(ringbufferId(exchangeSequence, CLIENT_TO_SERVER)),
+				ringbuffer(slot, CLIENT_TO_SERVER), waitStrategy, true);
 		return Exchange.ofNoExtraCloseAction(in, out);
 	}
 
-	private AutoCloseableByteBuffer nextMapping() throws IOException
+	private int nextExchangeSequence()
+	{
+		int exchangeSequence = nextExchangeSequence;
+		nextExchangeSequence = (exchangeSequence + 1) & EXCHANGE_SEQUENCE_MASK;
+		return exchangeSequence;
+	}
+
+	private static int ringbufferId(int exchangeSequence, int direction)
+	{
+		return FIRST_EXCHANGE_RINGBUFFER_ID + (exchangeSequence << 1 | direction);
+	}
+
+	/**
+	 * Slices the given ringbuffer out of its slot's chunk. Once the stream using it is closed, the stream is done with the slot.
+	 * The slot might be reused by the next exchange right after that, so the stream has to wait for running accesses before closing the slice.
+	 */
+	private AutoCloseableByteBuffer ringbuffer(int slot, int direction)
 	{
-		return AutoCloseableByteBuffer.wrapNoCloseAction(sharedFileChannel.map(MapMode.READ_WRITE,
-				nextMappingPosition.getAndAdd(bufsizePerExchangeDirectionIncludingOverhead), bufsizePerExchangeDirectionIncludingOverhead));
+		int offset = ((slot % slotsPerChunk) * 2 + direction) * bufsizePerExchangeDirectionIncludingOverhead;
+		// Streams are closed without holding openLock.
+		SharedMemoryControlRegion control = this.control;
+		return AutoCloseableByteBuffer.wrap(slotChunks[slot / slotsPerChunk].slice(offset, bufsizePerExchangeDirectionIncludingOverhead),
+				() -> control.streamReleasedSlot(slot));
 	}
 }
@@ -1,5 +1,6 @@
 package net.haspamelodica.exchanges.sharedmem;
 
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.EOF_POS;
 import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.OFFSET_READER_DATA;
 import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.OFFSET_WRITER_DATA;
 
@@ -8,7 +9,6 @@ import java.io.InputStream;
 import java.util.Objects;
 
 import net.haspamelodica.exchanges.Exchange;
-import net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.Positions;
 import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
 import net.haspamelodica.exchanges.util.ClosedException;
 
@@ -16,29 +16,61 @@ public class SharedMemoryInputStream extends InputStream
 {
 	private final SharedMemoryCommon sharedmem;
 
+	// only accessed by the thread currently reading
+	// The writer only ever sets the notification request bit of our data, so our pos only changes when we change it.
+	private long	readerPos;
+	// The writerPos we saw last. It might be outdated, but the writer only moves forward,
+	// so the bytes it shows as available stay available.
+	private long	cachedWriterPos;
+	private int		peekedFirstPortionSize;
+	private int		peekedLen;
+
 	public SharedMemoryInputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem) throws IOException
 	{
 		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, false);
 	}
 	public SharedMemoryInputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, long busyWaitTimeoutNanos) throws IOException
 	{
-		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, false, busyWaitTimeoutNanos);
+		this(slowExchange, autoCloseableSharedmem, WaitStrategy.spin(busyWaitTimeoutNanos));
+	}
+	public SharedMemoryInputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy) throws IOException
+	{
+		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, false, waitStrategy);
+	}
+	/**
+	 * Uses the given notifier instead of a slow exchange of its own; see {@link Notifier}.
+	 */
+	public SharedMemoryInputStream(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy) throws IOException
+	{
+		this(notifier, autoCloseableSharedmem, waitStrategy, false);
+	}
+	/**
+	 * See {@link SharedMemoryCommon#initialize(java.nio.ByteBuffer)}.
+	 */
+	SharedMemoryInputStream(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy, boolean alreadyInitialized)
+			throws IOException
+	{
+		this.sharedmem = new SharedMemoryCommon(notifier, autoCloseableSharedmem, false, waitStrategy, alreadyInitialized);
 	}
 
 	@Override
 	public int read() throws IOException
 	{
-		Positions positions = ensureNotEmpty();
-		if(positions == null)
-			return -1;
-
-		int readerPos = positions.ownPos();
+		// The shared memory must stay mapped while we access it, even if we get closed concurrently.
+		sharedmem.beginAccess();
+		try
+		{
+			if(ensureNotEmpty() < 0)
+				return -1;
 
-		// Here, writerPos is valid, which means that there's at least one byte available, so we're ready to perform the read!
-		// First, read the byte. Order is important because otherwise the byte might get overwritten.
-		int read = sharedmem.getDataByte(readerPos) & 0xFF;
-		sharedmem.updatePosHandlingNotificationRequest(OFFSET_READER_DATA, (readerPos + 1) % sharedmem.bufsize());
-		return read;
+			// First, read the byte. Order is important because otherwise the byte might get overwritten.
+			int read = sharedmem.getDataByte(sharedmem.index(readerPos)) & 0xFF;
+			advanceReaderPos(1);
+			return read;
+		} finally
+		{
+			sharedmem.endAccess();
+		}
 	}
 
 	@Override
@@ -48,60 +80,155 @@ public class SharedMemoryInputStream extends InputStream
 		if(len == 0)
 			return 0;
 
-		Positions positions = ensureNotEmpty();
-		if(positions == null)
+		sharedmem.beginAccess();
+		try
+		{
+			return readAccessing(b, off, len);
+		} finally
+		{
+			sharedmem.endAccess();
+		}
+	}
+	private int readAccessing(byte[] b, int off, int len) throws IOException
+	{
+		int available = ensureNotEmpty();
+		if(available < 0)
 			return -1;
 
-		int readerPos = positions.ownPos();
-		int writerPos = positions.otherPos();
-
 		// First, read the bytes; then, send notification. Order is important because otherwise the byte might get overwritten.
-		int readBytes;
-		int newReaderPos;
-		if(readerPos < writerPos)
+		int readBytes = Math.min(len, available);
+		int index = sharedmem.index(readerPos);
+		// The available part might wrap around the end of the ringbuffer.
+		int firstPortionSize = Math.min(readBytes, sharedmem.bufsize() - index);
+		sharedmem.getDataBytes(index, b, off, firstPortionSize);
+		if(firstPortionSize != readBytes)
+			sharedmem.getDataBytes(0, b, off + firstPortionSize, readBytes - firstPortionSize);
+
+		advanceReaderPos(readBytes);
+		return readBytes;
+	}
+	/**
+	 * Waits until at least one byte is available, then returns read-only slices of up to <code>maxLen</code> available bytes
+	 * of the ringbuffer, which can be parsed in place instead of copying them into an array.
+	 * The bytes stay in the ringbuffer until they are consumed with {@link #release(int)}.
+	 * Returns <code>null</code> on EOF.
+	 * <p>
+	 * The slices must not be used anymore after the release or after any other read.
+	 * Another peek or read discards an unreleased peek without consuming anything.
+	 * Until then, the shared memory stays mapped even if this stream gets closed.
+	 */
+	public SharedMemorySlices peek(int maxLen) throws ClosedException, IOException
+	{
+		if(maxLen <= 0)
+			throw new IllegalArgumentException("non-positive peek length: " + maxLen);
+
+		discardPeek();
+		sharedmem.beginAccess();
+		boolean peeked = false;
+		try
 		{
-			// no wraparound; just read
-			readBytes = Math.min(len, writerPos - readerPos);
-			sharedmem.getDataBytes(readerPos, b, off, readBytes);
-			newReaderPos = readerPos + readBytes;
-		} else
+			peeked = peekAccessing(maxLen);
+		} finally
+		{
+			// On success, the access only ends once the peek is released or discarded.
+			if(!peeked)
+				sharedmem.endAccess();
+		}
+		return !peeked ? null : new SharedMemorySlices(sharedmem.dataSlice(sharedmem.index(readerPos), peekedFirstPortionSize).asReadOnlyBuffer(),
+				sharedmem.dataSlice(0, peekedLen - peekedFirstPortionSize).asReadOnlyBuffer());
+	}
+	private boolean peekAccessing(int maxLen) throws ClosedException, IOException
+	{
+		int available = ensureNotEmpty();
+		if(available < 0)
+			return false;
+
+		// Same as in read.
+		int len = Math.min(maxLen, available);
+		peekedFirstPortionSize = Math.min(len, sharedmem.bufsize() - sharedmem.index(readerPos));
+		peekedLen = len;
+		return true;
+	}
+
+	/**
+	 * Consumes the first <code>len</code> bytes of the last {@link #peek(int) peek}, which lets the other side overwrite them.
+	 * The rest of the peeked bytes stay available for the next read or peek.
+	 */
+	public void release(int len) throws ClosedException, IOException
+	{
+		if(len < 0 || len > peekedLen)
+			throw new IllegalArgumentException("release length " + len + " illegal for peek length " + peekedLen);
+
+		try
 		{
-			// wraparound
-			int firstPortionSize = sharedmem.bufsize() - readerPos;
-			// First check if len is too small for the portion from readerPos to the end.
-			if(len < firstPortionSize)
-			{
-				// That is the case, so we'll only need to read a part of that portion.
-				sharedmem.getDataBytes(readerPos, b, off, len);
-				readBytes = len;
-				newReaderPos = readerPos + readBytes;
-			} else
-			{
-				// len is big enough to fit at least the entire first portion. So, start by reading that portion.
-				sharedmem.getDataBytes(readerPos, b, off, firstPortionSize);
-				// Now, the reader pos is at bufsize, which means it's at 0.
-				// See how many more bytes fit into len.
-				int secondPortionLen = Math.min(len - firstPortionSize, writerPos);
-				if(secondPortionLen != 0)
-					sharedmem.getDataBytes(0, b, off + firstPortionSize, secondPortionLen);
-				readBytes = firstPortionSize + secondPortionLen;
-				newReaderPos = secondPortionLen;
-			}
+			sharedmem.checkNotClosed();
+			if(len != 0)
+				// Any read discards the peek, so the peek still starts at readerPos.
+				advanceReaderPos(len);
+		} finally
+		{
+			discardPeek();
 		}
+	}
 
-		sharedmem.updatePosHandlingNotificationRequest(OFFSET_READER_DATA, newReaderPos);
-		return readBytes;
+	/**
+	 * A successful peek always has at least one byte, so a peek is pending exactly if {@link #peekedLen} isn't 0.
+	 */
+	private void discardPeek() throws IOException
+	{
+		if(peekedLen != 0)
+		{
+			peekedLen = 0;
+			sharedmem.endAccess();
+		}
 	}
-	private Positions ensureNotEmpty() throws ClosedException, IOException
+
+	/**
+	 * Returns the number of available bytes, which is at least 1, or -1 on EOF.
+	 */
+	private int ensureNotEmpty() throws ClosedException, IOException
 	{
-		// The buffer is only empty if readerPos == writerPos. All other combinations mean there's data available;
-		// even those with readerPos > writerPos.
+		// Any read discards an unreleased peek.
+		discardPeek();
+
+		// The buffer is only empty if readerPos == writerPos. All other combinations mean there's data available.
 		// So, readerPos is the only forbidden value for writerPos, thus 0 is the only forbidden delta.
-		Positions positions = sharedmem.ensureValidPositions(OFFSET_READER_DATA, OFFSET_WRITER_DATA, 0);
+		// We only have to look at the current writerPos if the one we saw last doesn't show any available bytes.
+		if(cachedWriterPos == readerPos)
+		{
+			long writerPos = sharedmem.ensureValidOtherPos(readerPos, OFFSET_WRITER_DATA, 0);
+			if(writerPos == EOF_POS)
+				return -1;
+			cachedWriterPos = writerPos;
+		} else
+			// Same as in ensureValidOtherPos: we mustn't return any data after we get closed.
+			sharedmem.checkNotClosed();
 
-		// Here, either positions==null meaning EOF; or writerPos is valid,
-		// which means that there's at least one byte available, so we're ready to perform the read!
-		return positions;
+		// Here, writerPos is valid, which means that there's at least one byte available, so we're ready to perform the read!
+		// The writer is never more than bufsize ahead, so this fits into an int.
+		return (int) (cachedWriterPos - readerPos);
+	}
+
+	private void advanceReaderPos(int len) throws IOException
+	{
+		readerPos += len;
+		sharedmem.updatePosHandlingNotificationRequest(OFFSET_READER_DATA, readerPos);
+	}
+
+	/**
+	 * Returns the number of bytes read so far. This is just the position this side published last.
+	 */
+	public long getTotalBytesRead()
+	{
+		return sharedmem.publishedPos();
+	}
+
+	/**
+	 * Returns how this stream waited for the other side so far; see {@link WaitStrategy}.
+	 */
+	public SpinStatistics getSpinStatistics()
+	{
+		return sharedmem.spinStatistics();
 	}
 
 	@Override
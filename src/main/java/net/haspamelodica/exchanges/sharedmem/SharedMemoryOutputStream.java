@@ -1,5 +1,6 @@
 package net.haspamelodica.exchanges.sharedmem;
 
+import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.EOF_POS;
 import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.OFFSET_READER_DATA;
 import static net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.OFFSET_WRITER_DATA;
 
@@ -9,31 +10,102 @@ import java.io.OutputStream;
 import java.util.Objects;
 
 import net.haspamelodica.exchanges.Exchange;
-import net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon.Positions;
 import net.haspamelodica.exchanges.util.AutoCloseableByteBuffer;
 import net.haspamelodica.exchanges.util.ClosedException;
 
+/**
+ * The writing side of a shared memory ringbuffer; see {@link SharedMemoryInputStream} for the reading side.
+ * <p>
+ * By default, every write publishes the new writer position to the other side immediately.
+ * With a {@link #setPublishThreshold(int) publish threshold} above 1, written bytes are only published
+ * once at least that many are unpublished, on {@link #flush()}, on {@link #close()},
+ * or when a write would have to wait for the reader because the ringbuffer is full.
+ * This saves an atomic update of the shared position and, if the reader requested a notification, a notification per write,
+ * but the other side only sees bytes once they are published, so users must flush like with a {@link java.io.BufferedOutputStream}.
+ */
 public class SharedMemoryOutputStream extends OutputStream
 {
+	public static final int	PUBLISH_ON_EVERY_WRITE	= 1;
+	public static final int	PUBLISH_ON_FLUSH_ONLY	= Integer.MAX_VALUE;
+
 	private final SharedMemoryCommon sharedmem;
 
+	// only accessed by the thread currently writing
+	private int		publishThreshold;
+	// The reader only ever sets the notification request bit of our data, so our pos only changes when we change it.
+	private long	writerPos;
+	private long	publishedWriterPos;
+	// The readerPos we saw last. It might be outdated, but the reader only moves forward,
+	// so the space it shows as free stays free.
+	private long	cachedReaderPos;
+	private int		claimedFirstPortionSize;
+	private int		claimedLen;
+
 	public SharedMemoryOutputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem) throws IOException
 	{
 		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, true);
+		this.publishThreshold = PUBLISH_ON_EVERY_WRITE;
 	}
 	public SharedMemoryOutputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, long busyWaitTimeoutNanos) throws IOException
 	{
-		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, true, busyWaitTimeoutNanos);
+		this(slowExchange, autoCloseableSharedmem, WaitStrategy.spin(busyWaitTimeoutNanos));
+	}
+	public SharedMemoryOutputStream(Exchange slowExchange, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy) throws IOException
+	{
+		this.sharedmem = new SharedMemoryCommon(slowExchange, autoCloseableSharedmem, true, waitStrategy);
+		this.publishThreshold = PUBLISH_ON_EVERY_WRITE;
+	}
+	/**
+	 * Uses the given notifier instead of a slow exchange of its own; see {@link Notifier}.
+	 */
+	public SharedMemoryOutputStream(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy) throws IOException
+	{
+		this(notifier, autoCloseableSharedmem, waitStrategy, false);
+	}
+	/**
+	 * See {@link SharedMemoryCommon#initialize(java.nio.ByteBuffer)}.
+	 */
+	SharedMemoryOutputStream(Notifier notifier, AutoCloseableByteBuffer autoCloseableSharedmem, WaitStrategy waitStrategy, boolean alreadyInitialized)
+			throws IOException
+	{
+		this.sharedmem = new SharedMemoryCommon(notifier, autoCloseableSharedmem, true, waitStrategy, alreadyInitialized);
+		this.publishThreshold = PUBLISH_ON_EVERY_WRITE;
+	}
+
+	/**
+	 * Sets after how many unpublished bytes a write publishes them; see {@link SharedMemoryOutputStream}.
+	 * {@link #PUBLISH_ON_EVERY_WRITE} publishes on each write, which is the default,
+	 * and {@link #PUBLISH_ON_FLUSH_ONLY} only publishes on flush and close and if the ringbuffer is full.
+	 * <p>
+	 * Must not be called while another thread is writing.
+	 */
+	public void setPublishThreshold(int publishThreshold)
+	{
+		if(publishThreshold < 1)
+			throw new IllegalArgumentException("non-positive publish threshold: " + publishThreshold);
+		this.publishThreshold = publishThreshold;
+	}
+	public int getPublishThreshold()
+	{
+		return publishThreshold;
 	}
 
 	@Override
 	public void write(int b) throws IOException
 	{
-		int writerPos = ensureNotFull().ownPos();
+		// The shared memory must stay mapped while we access it, even if we get closed concurrently.
+		sharedmem.beginAccess();
+		try
+		{
+			ensureNotFull();
 
-		// First, write the byte. Order is important because otherwise the other side might read too soon.
-		sharedmem.setDataByte(writerPos, (byte) b);
-		sharedmem.updatePosHandlingNotificationRequest(OFFSET_WRITER_DATA, (writerPos + 1) % sharedmem.bufsize());
+			// First, write the byte. Order is important because otherwise the other side might read too soon.
+			sharedmem.setDataByte(sharedmem.index(writerPos), (byte) b);
+			advanceWriterPos(1);
+		} finally
+		{
+			sharedmem.endAccess();
+		}
 	}
 
 	@Override
@@ -41,85 +113,206 @@ public class SharedMemoryOutputStream extends OutputStream
 	{
 		Objects.checkFromIndexSize(off, len, b.length);
 
-		int nextOff = off;
-		int remaining = len;
-		while(remaining != 0)
+		sharedmem.beginAccess();
+		try
+		{
+			int nextOff = off;
+			int remaining = len;
+			while(remaining != 0)
+			{
+				int written = writeChunk(b, nextOff, remaining);
+				nextOff += written;
+				remaining -= written;
+			}
+		} finally
 		{
-			int written = writeChunk(b, nextOff, remaining);
-			nextOff += written;
-			remaining -= written;
+			sharedmem.endAccess();
 		}
 	}
 
 	private int writeChunk(byte[] b, int off, int len) throws IOException
 	{
-		Positions positions = ensureNotFull();
-
-		int writerPos = positions.ownPos();
-		int readerPos = positions.otherPos();
+		int free = ensureNotFull();
 
 		// First, write the bytes. Order is important because otherwise the other side might read too soon.
-		int writtenBytes;
-		int newWriterPos;
-		if(writerPos < readerPos)
+		int writtenBytes = Math.min(len, free);
+		int index = sharedmem.index(writerPos);
+		// The free part might wrap around the end of the ringbuffer.
+		int firstPortionSize = Math.min(writtenBytes, sharedmem.bufsize() - index);
+		sharedmem.setDataBytes(index, b, off, firstPortionSize);
+		if(firstPortionSize != writtenBytes)
+			sharedmem.setDataBytes(0, b, off + firstPortionSize, writtenBytes - firstPortionSize);
+
+		advanceWriterPos(writtenBytes);
+		return writtenBytes;
+	}
+
+	/**
+	 * Waits until there's room for at least one byte, then returns slices of up to <code>maxLen</code> bytes of the free part
+	 * of the ringbuffer, which can be filled in place instead of copying from an array.
+	 * The bytes only become visible to the other side once they are committed with {@link #commit(int)}
+	 * and published according to the {@link #setPublishThreshold(int) publish threshold}.
+	 * <p>
+	 * The slices must not be used anymore after the commit or after any other write.
+	 * Another claim or write discards an uncommitted claim.
+	 * Until then, the shared memory stays mapped even if this stream gets closed.
+	 */
+	public SharedMemorySlices claim(int maxLen) throws ClosedException, EOFException, IOException
+	{
+		if(maxLen <= 0)
+			throw new IllegalArgumentException("non-positive claim length: " + maxLen);
+
+		discardClaim();
+		sharedmem.beginAccess();
+		boolean claimed = false;
+		try
 		{
-			// no wraparound; just write. -1 because we are not allowed to make writerPos==readerPos,
-			// because that means the ringbuffer is empty.
-			writtenBytes = Math.min(len, readerPos - writerPos - 1);
-			sharedmem.setDataBytes(writerPos, b, off, writtenBytes);
-			newWriterPos = writerPos + writtenBytes;
-		} else
+			claimAccessing(maxLen);
+			claimed = true;
+		} finally
 		{
-			// wraparound or empty. We can at least write up to the end.
-			int firstPortionSize = sharedmem.bufsize() - writerPos;
-			// First check if len is smaller than the portion from writerPos to the end.
-			if(len < firstPortionSize)
-			{
-				// That is the case, so we'll only need to write a part of that portion.
-				sharedmem.setDataBytes(writerPos, b, off, len);
-				writtenBytes = len;
-				newWriterPos = writerPos + writtenBytes;
-			} else if(readerPos == 0)
-			{
-				// len is big enough to fill at least the entire first portion, but readerPos==0.
-				// So, we can only fill up to the second-to-last byte,
-				// because otherwise writerPos would need to be equal to readerPos.				
-				sharedmem.setDataBytes(writerPos, b, off, firstPortionSize - 1);
-				writtenBytes = firstPortionSize - 1;
-				newWriterPos = sharedmem.bufsize() - 1;
-			} else
-			{
-				// len is big enough to fill at least the entire first portion. So, start by writing that portion.
-				sharedmem.setDataBytes(writerPos, b, off, firstPortionSize);
-				// Now, the writer pos is at bufsize, which means it's at 0.
-				// See how many more bytes len has left.
-				int secondPortionLen = Math.min(len - firstPortionSize, readerPos - 1);
-				if(secondPortionLen != 0)
-					sharedmem.setDataBytes(0, b, off + firstPortionSize, secondPortionLen);
-				writtenBytes = firstPortionSize + secondPortionLen;
-				newWriterPos = secondPortionLen;
-			}
+			// On success, the access only ends once the claim is committed or discarded.
+			if(!claimed)
+				sharedmem.endAccess();
 		}
+		return new SharedMemorySlices(sharedmem.dataSlice(sharedmem.index(writerPos), claimedFirstPortionSize),
+				sharedmem.dataSlice(0, claimedLen - claimedFirstPortionSize));
+	}
+	private void claimAccessing(int maxLen) throws ClosedException, EOFException, IOException
+	{
+		int free = ensureNotFull();
 
-		sharedmem.updatePosHandlingNotificationRequest(OFFSET_WRITER_DATA, newWriterPos);
-		return writtenBytes;
+		// Same as in writeChunk.
+		int len = Math.min(maxLen, free);
+		claimedFirstPortionSize = Math.min(len, sharedmem.bufsize() - sharedmem.index(writerPos));
+		claimedLen = len;
+	}
+
+	/**
+	 * Commits the first <code>len</code> bytes of the last {@link #claim(int) claim} like a write would.
+	 * The rest of the claim is discarded.
+	 */
+	public void commit(int len) throws ClosedException, IOException
+	{
+		if(len < 0 || len > claimedLen)
+			throw new IllegalArgumentException("commit length " + len + " illegal for claim length " + claimedLen);
+
+		try
+		{
+			sharedmem.checkNotClosed();
+			if(len != 0)
+				// Any write discards the claim, so the claim still starts at writerPos.
+				advanceWriterPos(len);
+		} finally
+		{
+			discardClaim();
+		}
+	}
+
+	/**
+	 * A successful claim always has room for at least one byte, so a claim is pending exactly if {@link #claimedLen} isn't 0.
+	 */
+	private void discardClaim() throws IOException
+	{
+		if(claimedLen != 0)
+		{
+			claimedLen = 0;
+			sharedmem.endAccess();
+		}
 	}
 
-	private Positions ensureNotFull() throws ClosedException, IOException, EOFException
+	/**
+	 * Returns the number of free bytes, which is at least 1.
+	 */
+	private int ensureNotFull() throws ClosedException, IOException, EOFException
 	{
-		// The buffer is only full if writerPos is just before readerPos. All other combinations mean there's still room.
-		// So, writerPos+1 is the only forbidden value for readerPos.
-		Positions positions = sharedmem.ensureValidPositions(OFFSET_WRITER_DATA, OFFSET_READER_DATA, 1);
-		if(positions == null)
-			throw new EOFException();
+		// Any write discards an uncommitted claim.
+		discardClaim();
+
+		// The buffer is only full if writerPos is exactly bufsize ahead of readerPos. All other combinations mean there's still room.
+		// So, writerPos-bufsize is the only forbidden value for readerPos.
+		// We only have to look at the current readerPos if the one we saw last doesn't show any free space.
+		long fullReaderPos = writerPos - sharedmem.bufsize();
+		if(cachedReaderPos == fullReaderPos)
+		{
+			// If the buffer is still full, the reader might be waiting for our unpublished bytes,
+			// so publish them before waiting for the reader. Otherwise, both sides would wait for each other forever.
+			if(writerPos != publishedWriterPos && sharedmem.pos(OFFSET_READER_DATA) == fullReaderPos)
+				publish();
+
+			long readerPos = sharedmem.ensureValidOtherPos(writerPos, OFFSET_READER_DATA, -sharedmem.bufsize());
+			if(readerPos == EOF_POS)
+				throw new EOFException();
+			cachedReaderPos = readerPos;
+		} else
+			// Same as in ensureValidOtherPos: we mustn't write any data after we get closed.
+			sharedmem.checkNotClosed();
 
 		// Here, readerPos is valid, which means that there's at least one byte space, so we're ready to perform the write!
-		return positions;
+		return sharedmem.bufsize() - (int) (writerPos - cachedReaderPos);
+	}
+
+	private void advanceWriterPos(int len) throws IOException
+	{
+		writerPos += len;
+		if(writerPos - publishedWriterPos >= publishThreshold)
+			publish();
+	}
+
+	private void publish() throws IOException
+	{
+		publishedWriterPos = writerPos;
+		sharedmem.updatePosHandlingNotificationRequest(OFFSET_WRITER_DATA, writerPos);
+	}
+
+	/**
+	 * Publishes all bytes written so far to the other side. Only needed if the publish threshold is above 1.
+	 */
+	@Override
+	public void flush() throws ClosedException, IOException
+	{
+		if(writerPos == publishedWriterPos)
+			return;
+
+		sharedmem.beginAccess();
+		try
+		{
+			publish();
+		} finally
+		{
+			sharedmem.endAccess();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written so far. This is just the position this side published last,
+	 * so unpublished bytes aren't counted.
+	 */
+	public long getTotalBytesWritten()
+	{
+		return sharedmem.publishedPos();
+	}
+
+	/**
+	 * Returns how this stream waited for the other side so far; see {@link WaitStrategy}.
+	 */
+	public SpinStatistics getSpinStatistics()
+	{
+		return sharedmem.spinStatistics();
 	}
 
 	@Override
 	public void close() throws IOException
 	{
-		sharedmem.close();
+		try
+		{
+			flush();
+		} catch(ClosedException e)
+		{
+			// Closing twice is fine; there's nothing left to publish then.
+		} finally
+		{
+			sharedmem.close();
+		}
 	}
 }
@@ -0,0 +1,20 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Views directly into the ringbuffer of a shared memory stream;
+ * see {@link SharedMemoryOutputStream#claim(int)} and {@link SharedMemoryInputStream#peek(int)}.
+ * The second slice is only non-empty if the region wraps around the end of the ringbuffer;
+ * it then continues right where the first slice ends.
+ */
+public record SharedMemorySlices(ByteBuffer first, ByteBuffer second)
+{
+	/**
+	 * Returns the total number of bytes in both slices.
+	 */
+	public int length()
+	{
+		return first.capacity() + second.capacity();
+	}
+}
@@ -0,0 +1,160 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limits how many shared memory streams of this JVM busy-wait at the same time.
+ * Otherwise, many waiting streams would occupy all cores just by spinning and starve the threads doing actual work.
+ * <p>
+ * Each busy wait first has to take one of {@link #getMaxSpinners()} spinner slots; if it can't, it immediately waits
+ * for a notification instead. If all slots are taken, a stream takes the slot of the spinner whose traffic is oldest,
+ * if that is older than its own, so slots go to the streams which most recently had traffic.
+ * A stream's traffic is the last time it saw the other side make progress, whether right away or at the end of a wait.
+ * Only streams whose wait strategy wants to busy-wait take a slot. A stream losing its slot notices that
+ * the next time it checks the other side, and then waits for a notification.
+ * <p>
+ * This is applied to each stream on top of its {@link WaitStrategy}; see {@link SharedMemoryCommon}.
+ */
+public final class SpinGovernor
+{
+	/**
+	 * One spinner for each core, except for one core which is left to the threads doing actual work.
+	 */
+	public static final int DEFAULT_MAX_SPINNERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	// Replaced as a whole when the maximum changes; spinners in a replaced array notice that they lost their slot.
+	private static volatile AtomicReferenceArray<GovernedWaitStrategy> spinners = new AtomicReferenceArray<>(DEFAULT_MAX_SPINNERS);
+
+	private SpinGovernor()
+	{}
+
+	/**
+	 * Sets how many streams may busy-wait at the same time. 0 means no stream busy-waits at all.
+	 * Taking a slot takes time linear in this number, so it should be in the order of the number of cores.
+	 * Streams busy-waiting when this is called stop busy-waiting.
+	 */
+	public static void setMaxSpinners(int maxSpinners)
+	{
+		if(maxSpinners < 0)
+			throw new IllegalArgumentException("maxSpinners must not be negative: " + maxSpinners);
+		spinners = new AtomicReferenceArray<>(maxSpinners);
+	}
+
+	public static int getMaxSpinners()
+	{
+		return spinners.length();
+	}
+
+	/**
+	 * Returns a wait strategy asking this governor before each busy wait of the given stream strategy.
+	 * The given strategy must already be the result of {@link WaitStrategy#forStream()}.
+	 */
+	static GovernedWaitStrategy govern(WaitStrategy streamStrategy)
+	{
+		return new GovernedWaitStrategy(streamStrategy);
+	}
+
+	static final class GovernedWaitStrategy implements WaitStrategy
+	{
+		private final WaitStrategy streamStrategy;
+
+		// read by other streams looking for a slot to take
+		private volatile long lastTrafficNanos;
+
+		// only accessed by the thread currently waiting; heldSpinners is null if we don't hold a slot
+		private AtomicReferenceArray<GovernedWaitStrategy>	heldSpinners;
+		private int											heldSlot;
+
+		private GovernedWaitStrategy(WaitStrategy streamStrategy)
+		{
+			this.streamStrategy = streamStrategy;
+			this.lastTrafficNanos = System.nanoTime();
+		}
+
+		@Override
+		public boolean idle(int iteration, long busyWaitStartNanos)
+		{
+			// Ask the stream strategy first, so a stream not busy-waiting anyway doesn't take the slot of one which would.
+			if(streamStrategy.idle(iteration, busyWaitStartNanos))
+				// The first iteration starts a new busy wait.
+				if(iteration == 0 ? tryTakeSlot() : stillHoldsSlot())
+					return true;
+
+			releaseSlot();
+			return false;
+		}
+
+		@Override
+		public void waitEnded(boolean spinSucceeded, long spinNanos, long totalWaitNanos)
+		{
+			// If the busy wait succeeded, we still hold our slot.
+			releaseSlot();
+			trafficSeen();
+			streamStrategy.waitEnded(spinSucceeded, spinNanos, totalWaitNanos);
+		}
+
+		/**
+		 * Called when the other side made progress without a wait being necessary.
+		 */
+		void trafficSeen()
+		{
+			lastTrafficNanos = System.nanoTime();
+		}
+
+		private boolean tryTakeSlot()
+		{
+			AtomicReferenceArray<GovernedWaitStrategy> spinners = SpinGovernor.spinners;
+			long lastTrafficNanos = this.lastTrafficNanos;
+
+			int victimSlot = -1;
+			GovernedWaitStrategy victim = null;
+			long victimLastTrafficNanos = lastTrafficNanos;
+			for(int slot = 0; slot < spinners.length(); slot ++)
+			{
+				GovernedWaitStrategy spinner = spinners.get(slot);
+				if(spinner == null)
+				{
+					if(spinners.compareAndSet(slot, null, this))
+						return holdSlot(spinners, slot);
+					continue;
+				}
+
+				long spinnerLastTrafficNanos = spinner.lastTrafficNanos;
+				if(spinnerLastTrafficNanos - victimLastTrafficNanos < 0)
+				{
+					victimSlot = slot;
+					victim = spinner;
+					victimLastTrafficNanos = spinnerLastTrafficNanos;
+				}
+			}
+
+			// If the victim released its slot in the meantime, somebody else got it first, so there's no need to look again.
+			if(victim != null && spinners.compareAndSet(victimSlot, victim, this))
+				return holdSlot(spinners, victimSlot);
+			return false;
+		}
+
+		private boolean holdSlot(AtomicReferenceArray<GovernedWaitStrategy> spinners, int slot)
+		{
+			heldSpinners = spinners;
+			heldSlot = slot;
+			return true;
+		}
+
+		private boolean stillHoldsSlot()
+		{
+			AtomicReferenceArray<GovernedWaitStrategy> heldSpinners = this.heldSpinners;
+			return heldSpinners != null && heldSpinners == SpinGovernor.spinners && heldSpinners.get(heldSlot) == this;
+		}
+
+		private void releaseSlot()
+		{
+			if(heldSpinners == null)
+				return;
+
+			// Fails if our slot has been taken by another stream, which is fine.
+			heldSpinners.compareAndSet(heldSlot, this, null);
+			heldSpinners = null;
+		}
+	}
+}
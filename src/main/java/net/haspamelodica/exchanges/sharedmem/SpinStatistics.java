@@ -0,0 +1,17 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+/**
+ * How often a shared memory stream had to wait for the other side, how often the busy wait succeeded,
+ * and how much time was spent busy waiting, which is roughly the CPU time spent on it.
+ * Waits counted here are only those where the other side wasn't ready right away.
+ */
+public record SpinStatistics(long waits, long spinSuccesses, long spinNanos)
+{
+	/**
+	 * Returns the fraction of waits which ended during the busy wait, or 1 if there haven't been any waits yet.
+	 */
+	public double spinSuccessRate()
+	{
+		return waits == 0 ? 1 : (double) spinSuccesses / waits;
+	}
+}
@@ -0,0 +1,119 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides how a shared memory stream busy-waits for the other side before it falls back
+ * to waiting for a notification over the slow exchange.
+ * Busy waiting reacts faster, but costs CPU time for as long as it lasts; see {@link SharedMemoryCommon}.
+ * <p>
+ * Implementations must be thread-safe because the same instance can be used by many streams at once.
+ */
+@FunctionalInterface
+public interface WaitStrategy
+{
+	public static final long	DEFAULT_YIELD_SPIN_NANOS	= 10_000;		// 10us
+	public static final long	MIN_PARK_NANOS				= 1_000;		// 1us
+	public static final long	MAX_PARK_NANOS				= 100_000;		// 100us
+
+	/**
+	 * Called each time the busy wait saw that the other side still isn't ready.
+	 * Can wait a bit before returning, for example by spinning, yielding, or parking.
+	 *
+	 * @param iteration          how often this was already called during the current busy wait
+	 * @param busyWaitStartNanos the {@link System#nanoTime()} at which the current busy wait started
+	 * @return <code>true</code> to check the other side again, <code>false</code> to stop busy waiting
+	 *         and wait for a notification instead.
+	 */
+	public boolean idle(int iteration, long busyWaitStartNanos);
+
+	/**
+	 * Called once for each stream using this strategy. Strategies keeping state per stream return a new instance;
+	 * the returned instance is then only used by that stream, by one thread at a time.
+	 */
+	public default WaitStrategy forStream()
+	{
+		return this;
+	}
+
+	/**
+	 * Called after each wait in which the other side wasn't ready right away.
+	 *
+	 * @param spinSucceeded  whether the other side became ready during the busy wait
+	 * @param spinNanos      how long the busy wait took
+	 * @param totalWaitNanos how long it took until the other side became ready, including waiting for a notification
+	 */
+	public default void waitEnded(boolean spinSucceeded, long spinNanos, long totalWaitNanos)
+	{}
+
+	/**
+	 * Spins with {@link Thread#onSpinWait()} until the given timeout elapses.
+	 * Lowest latency, but occupies a core for the entire timeout.
+	 */
+	public static WaitStrategy spin(long timeoutNanos)
+	{
+		return (iteration, busyWaitStartNanos) ->
+		{
+			Thread.onSpinWait();
+			return System.nanoTime() - busyWaitStartNanos < timeoutNanos;
+		};
+	}
+
+	/**
+	 * Spins for the given time, then calls {@link Thread#yield()} between checks until the given timeout elapses.
+	 * Other threads on the same core can run while yielding.
+	 */
+	public static WaitStrategy spinThenYield(long spinNanos, long timeoutNanos)
+	{
+		return (iteration, busyWaitStartNanos) ->
+		{
+			long elapsed = System.nanoTime() - busyWaitStartNanos;
+			if(elapsed < spinNanos)
+				Thread.onSpinWait();
+			else
+				Thread.yield();
+			return elapsed < timeoutNanos;
+		};
+	}
+
+	/**
+	 * Spins for the given time, then parks between checks until the given timeout elapses.
+	 * Parking starts at {@link #MIN_PARK_NANOS} and roughly doubles with each check,
+	 * up to {@link #MAX_PARK_NANOS}, so long waits cost almost no CPU time,
+	 * but a notification might be noticed up to that much later.
+	 */
+	public static WaitStrategy spinThenPark(long spinNanos, long timeoutNanos)
+	{
+		return (iteration, busyWaitStartNanos) ->
+		{
+			long elapsed = System.nanoTime() - busyWaitStartNanos;
+			if(elapsed >= timeoutNanos)
+				return false;
+			if(elapsed < spinNanos)
+				Thread.onSpinWait();
+			else
+				// Parking for the time already spent parking makes the park time double with each check.
+				LockSupport.parkNanos(Math.max(MIN_PARK_NANOS, Math.min(MAX_PARK_NANOS, elapsed - spinNanos)));
+			return true;
+		};
+	}
+
+	/**
+	 * Spins with {@link Thread#onSpinWait()} for a budget kept separately for each stream,
+	 * which adapts between the given bounds to how long the other side usually takes to become ready.
+	 * Useful if the traffic of streams is hard to predict or differs between streams.
+	 */
+	public static WaitStrategy adaptive(long minSpinNanos, long maxSpinNanos)
+	{
+		return new AdaptiveWaitStrategy(minSpinNanos, maxSpinNanos);
+	}
+
+	/**
+	 * Doesn't busy-wait at all, but immediately waits for a notification.
+	 * Costs no CPU time while waiting, but each wait pays for a round trip over the slow exchange.
+	 */
+	public static WaitStrategy block()
+	{
+		return (iteration, busyWaitStartNanos) -> false;
+	}
+}
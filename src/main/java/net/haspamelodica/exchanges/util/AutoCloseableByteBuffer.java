@@ -2,6 +2,7 @@ package net.haspamelodica.exchanges.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
@@ -13,6 +14,13 @@ public interface AutoCloseableByteBuffer extends IOAutoCloseable
 {
 	public ByteBuffer byteBuffer();
 
+	/**
+	 * Returns whether the buffer must not be accessed anymore once it's closed, for example because closing unmaps it,
+	 * after which accessing it would crash the JVM, or gives it back to be reused by someone else.
+	 * If not, accesses racing with closing don't need to be guarded.
+	 */
+	public boolean mustNotBeAccessedAfterClose();
+
 	@Override
 	public void close() throws IOException;
 
@@ -27,14 +35,26 @@ public interface AutoCloseableByteBuffer extends IOAutoCloseable
 			OpenOption... openOptions) throws IOException
 	{
 		FileChannel fileChannel = FileChannel.open(path, openOptions);
-		//TODO change to MemorySegment once that's stable API
-		return wrap(fileChannel.map(mapMode, offset, size), fileChannel::close);
+		MappedByteBuffer byteBuffer = fileChannel.map(mapMode, offset, size);
+		return wrap(byteBuffer, () ->
+		{
+			try
+			{
+				Unmapper.unmap(byteBuffer);
+			} finally
+			{
+				fileChannel.close();
+			}
+		});
 	}
 
 	public static AutoCloseableByteBuffer wrapNoCloseAction(ByteBuffer byteBuffer)
 	{
 		return wrap(byteBuffer, null);
 	}
+	/**
+	 * As nothing is known about the close action, it is assumed that the buffer must not be accessed anymore after closing.
+	 */
 	public static AutoCloseableByteBuffer wrap(ByteBuffer byteBuffer, IORunnable closeAction)
 	{
 		return new AutoCloseableByteBufferImpl(byteBuffer, closeAction);
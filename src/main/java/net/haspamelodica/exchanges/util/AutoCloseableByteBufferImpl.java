@@ -5,6 +5,12 @@ import java.nio.ByteBuffer;
 
 public record AutoCloseableByteBufferImpl(ByteBuffer byteBuffer, IORunnable closeAction) implements AutoCloseableByteBuffer
 {
+	@Override
+	public boolean mustNotBeAccessedAfterClose()
+	{
+		return closeAction != null;
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -0,0 +1,59 @@
+package net.haspamelodica.exchanges.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps {@link MappedByteBuffer}s right away instead of whenever the garbage collector collects them.
+ * There's no public API for this on {@link ByteBuffer}s, so this uses <code>sun.misc.Unsafe.invokeCleaner</code>.
+ * If that isn't available, unmapping is left to the garbage collector, as before.
+ * <p>
+ * Accessing a buffer after it has been unmapped crashes the JVM,
+ * so callers must make sure no thread accesses the buffer anymore, including through slices and duplicates.
+ */
+//TODO replace with MemorySegment and Arena once that's stable API
+final class Unmapper
+{
+	private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+	static void unmap(MappedByteBuffer buffer)
+	{
+		if(INVOKE_CLEANER == null)
+			return;
+
+		try
+		{
+			INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+		} catch(RuntimeException | Error e)
+		{
+			throw e;
+		} catch(Throwable e)
+		{
+			// invokeCleaner doesn't throw any checked exceptions
+			throw new IllegalStateException("impossible state; this is a bug", e);
+		}
+	}
+
+	private static MethodHandle findInvokeCleaner()
+	{
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafeField.setAccessible(true);
+			return MethodHandles.lookup()
+					.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+					.bindTo(theUnsafeField.get(null));
+		} catch(ReflectiveOperationException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	private Unmapper()
+	{}
+}
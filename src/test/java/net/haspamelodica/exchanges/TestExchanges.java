@@ -2,27 +2,51 @@ package net.haspamelodica.exchanges;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.junit.jupiter.api.RepeatedTest;
 
+import net.haspamelodica.exchanges.multiplexed.MultiplexedExchange;
 import net.haspamelodica.exchanges.multiplexed.MultiplexedExchangePool;
+import net.haspamelodica.exchanges.multiplexed.MultiplexedExchangePoolConfig;
 import net.haspamelodica.exchanges.pipes.PipesExchangePool;
+import net.haspamelodica.exchanges.sharedmem.SharedMemoryCommon;
+import net.haspamelodica.exchanges.sharedmem.SharedMemoryExchangePool;
+import net.haspamelodica.exchanges.sharedmem.SharedMemoryInputStream;
+import net.haspamelodica.exchanges.sharedmem.SharedMemoryOutputStream;
+import net.haspamelodica.exchanges.sharedmem.SharedMemorySlices;
+import net.haspamelodica.exchanges.sharedmem.SpinGovernor;
+import net.haspamelodica.exchanges.sharedmem.SpinStatistics;
+import net.haspamelodica.exchanges.sharedmem.WaitStrategy;
 import net.haspamelodica.exchanges.util.AutoCloseablePair;
+import net.haspamelodica.exchanges.util.ClosedException;
 
 public class TestExchanges
 {
@@ -32,10 +56,48 @@ public class TestExchanges
 	private static final int	STRESS_TEST_LENGTH_MULTIPLIER	= 400;
 	private static final int	STRESS_TEST_PARALLEL_EXCHANGES	= 400;
 	private static final int	MAX_ASSUMED_BUFFER_SIZE			= 40000;
+	private static final int	TEST_RECEIVE_WINDOW				= 4096;
+	private static final int	SEQUENTIAL_EXCHANGES			= 200;
+	private static final int	TEST_RESERVOIR_DEPTH			= 16;
+	private static final int	TEST_RESERVOIR_REFILL_THRESHOLD	= 8;
+	private static final int	TEST_MAX_FRAME_SIZE				= 4096;
+	// not a multiple of the chunk size of the receive buffers
+	private static final int	TEST_BUDGETED_RECEIVE_WINDOW	= 3 * 4096 + 100;
+	private static final long	TEST_RECEIVE_BUFFER_BUDGET		= 8192;
+	private static final long	TEST_MIN_SPIN_NANOS				= 1_000;
+	private static final long	TEST_MAX_BATCHING_DELAY_NANOS	= 100_000;
+	// small, so the slices wrap around often; rounded up to whole cache lines, but still not a power of two
+	private static final int	TEST_SLICES_BUFSIZE				= 300;
+	private static final int	TEST_SLICES_LENGTH				= 20000;
+	private static final int	INTERRUPT_TEST_ROUNDS			= 20;
+	private static final int	SPIN_STATISTICS_ROUNDS			= 20;
+	private static final long	SPIN_STATISTICS_SPIN_NANOS		= 1_000_000_000;
+	private static final long	SLOT_REUSE_SPIN_NANOS			= 1_000_000_000;
+	private static final int	WFQ_FRAME_SIZE					= 16384;
+	private static final int	WFQ_FRAMES_PER_WRITE			= 32;
+	private static final int	WFQ_RECEIVE_WINDOW				= 4 * WFQ_FRAMES_PER_WRITE * WFQ_FRAME_SIZE;
+	private static final int	WFQ_HEAVY_WEIGHT				= 4;
+	private static final int	WFQ_WARMUP_FRAMES				= 20;
+	private static final int	WFQ_COUNTED_FRAMES				= 100;
+	private static final int	WFQ_THROTTLE_NANOS_PER_BYTE		= 10;
 
-	private static final boolean	TEST_MULTIPLEXED		= true;
-	private static final boolean	TEST_PIPED				= true;
-	private static final boolean	TEST_PIPED_NOSHAREDMEM	= true;
+	private static final boolean	TEST_MULTIPLEXED					= true;
+	private static final boolean	TEST_MULTIPLEXED_WINDOWED			= true;
+	private static final boolean	TEST_MULTIPLEXED_WRITER_THREAD		= true;
+	private static final boolean	TEST_MULTIPLEXED_BATCHING			= true;
+	private static final boolean	TEST_MULTIPLEXED_RESERVOIR			= true;
+	private static final boolean	TEST_MULTIPLEXED_ZERO_RTT			= true;
+	private static final boolean	TEST_MULTIPLEXED_FRAGMENTED			= true;
+	private static final boolean	TEST_MULTIPLEXED_BUDGETED			= true;
+	private static final boolean	TEST_MULTIPLEXED_PUBLISH_ON_FLUSH	= true;
+	private static final boolean	TEST_PIPED							= true;
+	private static final boolean	TEST_PIPED_NOSHAREDMEM				= true;
+	private static final boolean	TEST_PIPED_PARKING					= true;
+	private static final boolean	TEST_PIPED_BLOCKING					= true;
+	private static final boolean	TEST_PIPED_ADAPTIVE					= true;
+	private static final boolean	TEST_PIPED_NO_SPINNERS				= true;
+	private static final boolean	TEST_SHAREDMEM						= true;
+	private static final boolean	TEST_SHAREDMEM_PREFAULTED			= true;
 
 	@RepeatedTest(REGULAR_TEST_REPETITIONS)
 	public void testCreateAndTeardown() throws Exception
@@ -107,6 +169,29 @@ public class TestExchanges
 				pool -> pool.createNewExchange().in().close());
 	}
 
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testManySequentialExchanges() throws Exception
+	{
+		byte[] msg = b("test");
+		runTest(
+				pool ->
+				{
+					for(int i = 0; i < SEQUENTIAL_EXCHANGES; i ++)
+						try(Exchange exchange = pool.createNewExchange())
+						{
+							exchange.out().write(msg);
+						}
+				},
+				pool ->
+				{
+					for(int i = 0; i < SEQUENTIAL_EXCHANGES; i ++)
+						try(Exchange exchange = pool.createNewExchange())
+						{
+							assertArrayEquals(msg, exchange.in().readAllBytes());
+						}
+				});
+	}
+
 	@RepeatedTest(STRESS_TEST_REPETITIONS)
 	public void testMultipleStreamsStress() throws Exception
 	{
@@ -130,6 +215,426 @@ public class TestExchanges
 		});
 	}
 
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testSharedMemorySlices() throws Exception
+	{
+		long seed = ThreadLocalRandom.current().nextLong();
+		System.out.println("Seed: " + seed);
+
+		try(AutoCloseablePair<Exchange, Exchange> exchanges = Exchange.openPiped(TEST_SLICES_BUFSIZE))
+		{
+			SharedMemoryOutputStream out = (SharedMemoryOutputStream) exchanges.a().out();
+			SharedMemoryInputStream in = (SharedMemoryInputStream) exchanges.b().in();
+
+			DaemonThreadGroup group = new DaemonThreadGroup();
+			group.startThread("writer", () ->
+			{
+				Random random = new Random(seed);
+				for(int written = 0; written < TEST_SLICES_LENGTH;)
+				{
+					SharedMemorySlices slices = out.claim(random.nextInt(1, 2 * TEST_SLICES_BUFSIZE));
+					int len = Math.min(random.nextInt(slices.length() + 1), TEST_SLICES_LENGTH - written);
+					for(int i = 0; i < len; i ++)
+						slice(slices, i).put(sliceIndex(slices, i), slicesTestByte(written + i));
+					out.commit(len);
+					written += len;
+				}
+				out.close();
+			});
+			group.startThread("reader", () ->
+			{
+				Random random = new Random(~seed);
+				int read = 0;
+				for(SharedMemorySlices slices; (slices = in.peek(random.nextInt(1, 2 * TEST_SLICES_BUFSIZE))) != null;)
+				{
+					int len = random.nextInt(slices.length() + 1);
+					for(int i = 0; i < len; i ++)
+						assertEquals(slicesTestByte(read + i), slice(slices, i).get(sliceIndex(slices, i)));
+					in.release(len);
+					read += len;
+				}
+				assertEquals(TEST_SLICES_LENGTH, read);
+				assertNull(in.peek(1));
+			});
+			group.waitForCompletionOrError();
+		}
+	}
+
+	@RepeatedTest(STRESS_TEST_REPETITIONS)
+	public void testSlotNotReusedDuringRead() throws Exception
+	{
+		byte[] msg = b("56789");
+		// The busy wait outlasts reopening, so the read is still spinning on the old slot when the new exchange writes.
+		runSharedMemoryTest((pool1, pool2) ->
+		{
+			DaemonThreadGroup group = new DaemonThreadGroup();
+			// The first exchange opens the control region, which both sides have to do at the same time.
+			BlockingQueue<Exchange> serverExchanges = new ArrayBlockingQueue<>(1);
+			group.startThread("server", () -> serverExchanges.put(pool1.createNewExchange()));
+			Exchange clientExchange = pool2.createNewExchange();
+			Exchange serverExchange = serverExchanges.take();
+
+			Thread reader = group.startThread("reader", () -> assertThrows(ClosedException.class, () -> clientExchange.in().read()));
+			awaitInMethod(reader, "busyWaitForPos", new AtomicInteger(), -1);
+			clientExchange.close();
+			serverExchange.close();
+
+			try(Exchange newServerExchange = pool1.createNewExchange(); Exchange newClientExchange = pool2.createNewExchange())
+			{
+				newServerExchange.out().write(msg);
+				newServerExchange.out().flush();
+				assertArrayEquals(msg, newClientExchange.in().readNBytes(msg.length));
+			}
+			group.waitForCompletionOrError();
+		}, WaitStrategy.spin(SLOT_REUSE_SPIN_NANOS), false);
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testInterruptedWaitForCredit() throws Exception
+	{
+		// Each round, the writer can write at most a receive window before it has to wait for credit again.
+		int length = (INTERRUPT_TEST_ROUNDS + 1) * TEST_RECEIVE_WINDOW;
+		runMultiplexedTest((pool1, pool2) ->
+		{
+			DaemonThreadGroup group = new DaemonThreadGroup();
+			AtomicInteger written = new AtomicInteger();
+			Thread writer = group.startThread("writer", () ->
+			{
+				try(Exchange exchange = pool1.createNewExchange())
+				{
+					while(written.get() < length)
+						try
+						{
+							exchange.out().write(interruptTestByte(written.get()));
+							written.incrementAndGet();
+						} catch(InterruptedIOException e)
+						{
+							// The byte hasn't been written; try again.
+						}
+				}
+			});
+
+			group.startThread("reader", () ->
+			{
+				try(Exchange exchange = pool2.createNewExchange())
+				{
+					InputStream in = exchange.in();
+					int read = 0;
+					int writtenWhenInterrupted = -1;
+					for(int round = 0; round < INTERRUPT_TEST_ROUNDS; round ++)
+					{
+						awaitInMethod(writer, "waitForCredit", written, writtenWhenInterrupted);
+						writtenWhenInterrupted = written.get();
+						writer.interrupt();
+						// Reading returns credit, which races with the interrupt.
+						read = readInterruptTestBytes(in, read, written.get() - read);
+					}
+					readInterruptTestBytes(in, read, length - read);
+					assertEquals(-1, in.read());
+				}
+			});
+			group.waitForCompletionOrError();
+		}, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW));
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testInterruptedWaitForData() throws Exception
+	{
+		runMultiplexedTest((pool1, pool2) ->
+		{
+			DaemonThreadGroup group = new DaemonThreadGroup();
+			AtomicInteger read = new AtomicInteger();
+			Thread reader = group.startThread("reader", () ->
+			{
+				try(Exchange exchange = pool2.createNewExchange())
+				{
+					while(read.get() < INTERRUPT_TEST_ROUNDS)
+						try
+						{
+							assertEquals(interruptTestByte(read.get()) & 0xFF, exchange.in().read());
+							read.incrementAndGet();
+						} catch(InterruptedIOException e)
+						{
+							// No byte has been read; try again.
+						}
+					assertEquals(-1, exchange.in().read());
+				}
+			});
+
+			group.startThread("writer", () ->
+			{
+				try(Exchange exchange = pool1.createNewExchange())
+				{
+					for(int round = 0; round < INTERRUPT_TEST_ROUNDS; round ++)
+					{
+						awaitInMethod(reader, "waitForData", read, round - 1);
+						reader.interrupt();
+						// This races with the interrupt.
+						exchange.out().write(interruptTestByte(round));
+					}
+				}
+			});
+			group.waitForCompletionOrError();
+		}, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW));
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testSpinStatistics() throws Exception
+	{
+		// The busy wait is long enough to catch every byte.
+		try(AutoCloseablePair<Exchange, Exchange> pipedExchange = Exchange.openPiped(Exchange.DEFAULT_SHAREDMEM_BUFSIZE,
+				WaitStrategy.spin(SPIN_STATISTICS_SPIN_NANOS)))
+		{
+			SharedMemoryInputStream in = (SharedMemoryInputStream) pipedExchange.b().in();
+			DaemonThreadGroup group = new DaemonThreadGroup();
+			group.startThread("writer", () ->
+			{
+				OutputStream out = pipedExchange.a().out();
+				for(int i = 0; i < SPIN_STATISTICS_ROUNDS; i ++)
+				{
+					// Give the reader time to start waiting.
+					Thread.sleep(1);
+					out.write(i);
+					out.flush();
+				}
+			});
+
+			SpinStatistics before = in.getSpinStatistics();
+			for(int i = 0; i < SPIN_STATISTICS_ROUNDS; i ++)
+				assertEquals(i, in.read());
+			group.waitForCompletionOrError();
+			SpinStatistics after = in.getSpinStatistics();
+
+			// The reader might not always start waiting before the writer writes, for example if it gets descheduled.
+			long waits = after.waits() - before.waits();
+			long spinSuccesses = after.spinSuccesses() - before.spinSuccesses();
+			assertTrue(waits >= SPIN_STATISTICS_ROUNDS / 2 && waits <= SPIN_STATISTICS_ROUNDS, waits + " waits");
+			assertTrue(spinSuccesses >= SPIN_STATISTICS_ROUNDS / 2 && spinSuccesses <= waits, spinSuccesses + " spin successes of " + waits + " waits");
+			assertTrue(after.spinNanos() > before.spinNanos(), "no time spent spinning");
+		}
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testReservoirHits() throws Exception
+	{
+		runMultiplexedTest((pool1, pool2) ->
+		{
+			MultiplexedExchangePool multiplexedPool1 = (MultiplexedExchangePool) pool1;
+			awaitReservoirFilled(multiplexedPool1);
+			for(int i = 0; i < TEST_RESERVOIR_DEPTH; i ++)
+				multiplexedPool1.createNewExchange();
+			assertEquals(TEST_RESERVOIR_DEPTH, multiplexedPool1.getReservoirHitCount());
+			assertEquals(0, multiplexedPool1.getReservoirMissCount());
+		}, reservoirCountersConfig());
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testReservoirMisses() throws Exception
+	{
+		try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped())
+		{
+			// While the gate is closed, the refiller can't send the open frames for the exchanges it opens.
+			GatedOutputStream rawOut1 = new GatedOutputStream(rawPipedExchange.a().out());
+			Exchange rawExchange1 = Exchange.ofNoExtraCloseAction(rawPipedExchange.a().in(), rawOut1);
+			runMultiplexedTest((pool1, pool2) ->
+			{
+				MultiplexedExchangePool multiplexedPool1 = (MultiplexedExchangePool) pool1;
+				awaitReservoirFilled(multiplexedPool1);
+				rawOut1.closeGate();
+				for(int i = 0; i < TEST_RESERVOIR_DEPTH; i ++)
+					multiplexedPool1.createNewExchange();
+
+				// The reservoir is empty now, and refilling it can't finish.
+				DaemonThreadGroup group = new DaemonThreadGroup();
+				group.startThread("creator", multiplexedPool1::createNewExchange);
+				while(multiplexedPool1.getReservoirMissCount() == 0)
+					Thread.sleep(1);
+				rawOut1.openGate();
+				group.waitForCompletionOrError();
+
+				assertEquals(TEST_RESERVOIR_DEPTH, multiplexedPool1.getReservoirHitCount());
+				assertEquals(1, multiplexedPool1.getReservoirMissCount());
+			}, reservoirCountersConfig(), new AutoCloseablePair<>(rawExchange1, rawPipedExchange.b()));
+		}
+	}
+
+	/**
+	 * With zero-RTT open, pre-opened exchanges can be handed out as soon as the refiller opened them,
+	 * regardless of when the other side opens the corresponding exchanges.
+	 */
+	private static MultiplexedExchangePoolConfig reservoirCountersConfig()
+	{
+		return MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW).withZeroRttOpen(true)
+				.withReservoir(TEST_RESERVOIR_DEPTH, TEST_RESERVOIR_REFILL_THRESHOLD);
+	}
+
+	/**
+	 * The reservoir level counts exchanges as soon as opening them starts,
+	 * so the reservoir is only filled once the refiller thread waits for the next refill as well.
+	 */
+	private static void awaitReservoirFilled(MultiplexedExchangePool pool) throws InterruptedException
+	{
+		while(pool.getReservoirLevel() < TEST_RESERVOIR_DEPTH || Thread.getAllStackTraces().entrySet().stream()
+				.filter(thread -> thread.getKey().getName().equals("Multiplexer Reservoir Refiller"))
+				.anyMatch(thread -> Arrays.stream(thread.getValue()).noneMatch(element -> element.getClassName().equals(Semaphore.class.getName())
+						&& element.getMethodName().equals("acquire"))))
+			Thread.sleep(1);
+	}
+
+	@RepeatedTest(MANY_BYTES_TEST_REPETITIONS)
+	public void testWeightedFairQueuing() throws Exception
+	{
+		MultiplexedExchangePoolConfig config = MultiplexedExchangePoolConfig.DEFAULT.withUseFrameWriterThread(true)
+				.withReceiveWindow(WFQ_RECEIVE_WINDOW).withZeroRttOpen(true).withMaxFrameSize(WFQ_FRAME_SIZE);
+		try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped())
+		{
+			// The raw exchange has to be the bottleneck; otherwise, there's nothing to share.
+			ThrottledRecordingOutputStream rawOut1 = new ThrottledRecordingOutputStream(rawPipedExchange.a().out());
+			Exchange rawExchange1 = Exchange.ofNoExtraCloseAction(rawPipedExchange.a().in(), rawOut1);
+			AtomicInteger probeOffset = new AtomicInteger();
+			runMultiplexedTest((pool1, pool2) ->
+			{
+				MultiplexedExchangePool multiplexedPool1 = (MultiplexedExchangePool) pool1;
+				try(Exchange heavy1 = multiplexedPool1.createNewExchange(WFQ_HEAVY_WEIGHT); Exchange light1 = multiplexedPool1.createNewExchange();
+						Exchange probe1 = multiplexedPool1.createNewExchange();
+						Exchange heavy2 = pool2.createNewExchange(); Exchange light2 = pool2.createNewExchange(); Exchange probe2 = pool2.createNewExchange())
+				{
+					DaemonThreadGroup group = new DaemonThreadGroup();
+					AtomicBoolean stop = new AtomicBoolean();
+					startWfqWriter(group, "heavy writer", heavy1, (byte) 'H', stop);
+					startWfqWriter(group, "light writer", light1, (byte) 'L', stop);
+					group.startThread("heavy reader", () -> heavy2.in().transferTo(OutputStream.nullOutputStream()));
+					group.startThread("light reader", () -> light2.in().transferTo(OutputStream.nullOutputStream()));
+
+					// Once both writers saturate the raw exchange, send a control frame. It must overtake the queued data frames.
+					rawOut1.awaitSize(WFQ_WARMUP_FRAMES * WFQ_FRAME_SIZE);
+					probeOffset.set(rawOut1.size());
+					probe1.in().close();
+					rawOut1.awaitSize((WFQ_WARMUP_FRAMES + WFQ_COUNTED_FRAMES + 1) * (WFQ_FRAME_SIZE + 2 * Integer.BYTES));
+					stop.set(true);
+					group.waitForCompletionOrError();
+				}
+			}, config, new AutoCloseablePair<>(rawExchange1, rawPipedExchange.b()));
+
+			List<WfqFrame> frames = parseWfqFrames(rawOut1.toByteArray());
+			List<WfqFrame> dataFrames = frames.stream().filter(frame -> frame.kind() != 'E').toList();
+			long heavyFrames = dataFrames.subList(WFQ_WARMUP_FRAMES, WFQ_WARMUP_FRAMES + WFQ_COUNTED_FRAMES).stream()
+					.filter(frame -> frame.kind() == 'H').count();
+			long expectedHeavyFrames = WFQ_COUNTED_FRAMES * WFQ_HEAVY_WEIGHT / (WFQ_HEAVY_WEIGHT + 1);
+			assertTrue(Math.abs(heavyFrames - expectedHeavyFrames) <= WFQ_COUNTED_FRAMES / 10,
+					"heavy exchange sent " + heavyFrames + " of " + WFQ_COUNTED_FRAMES + " frames, expected about " + expectedHeavyFrames);
+
+			int eofOffset = frames.stream().filter(frame -> frame.kind() == 'E').findFirst().orElseThrow().offset();
+			// One data frame might have been taken from the queue already, and one might have been recorded before probeOffset was read.
+			long dataFramesBeforeEof = dataFrames.stream().filter(frame -> frame.offset() >= probeOffset.get() && frame.offset() < eofOffset).count();
+			assertTrue(dataFramesBeforeEof <= 2, dataFramesBeforeEof + " data frames were sent before the control frame");
+		}
+	}
+
+	@RepeatedTest(REGULAR_TEST_REPETITIONS)
+	public void testWeightWithoutFrameWriterThread() throws Exception
+	{
+		runMultiplexedTest((pool1, pool2) ->
+		{
+			MultiplexedExchangePool multiplexedPool1 = (MultiplexedExchangePool) pool1;
+			assertThrows(IllegalArgumentException.class, () -> multiplexedPool1.createNewExchange(WFQ_HEAVY_WEIGHT));
+			try(MultiplexedExchange exchange1 = multiplexedPool1.createNewExchange(MultiplexedExchange.DEFAULT_WEIGHT); Exchange exchange2 = pool2.createNewExchange())
+			{
+				assertThrows(IllegalArgumentException.class, () -> exchange1.setWeight(WFQ_HEAVY_WEIGHT));
+			}
+		}, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW).withZeroRttOpen(true));
+	}
+
+	private static void startWfqWriter(DaemonThreadGroup group, String name, Exchange exchange, byte b, AtomicBoolean stop)
+	{
+		byte[] buf = new byte[WFQ_FRAMES_PER_WRITE * WFQ_FRAME_SIZE];
+		Arrays.fill(buf, b);
+		group.startThread(name, () ->
+		{
+			while(!stop.get())
+				exchange.out().write(buf);
+			exchange.out().close();
+		});
+	}
+
+	/**
+	 * Returns the data frames, as their first byte, and the input EOF frames, as 'E'.
+	 */
+	private static List<WfqFrame> parseWfqFrames(byte[] raw) throws IOException
+	{
+		List<WfqFrame> frames = new ArrayList<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+		for(int offset = 0; offset < raw.length;)
+		{
+			int exchangeIdWord = in.readInt();
+			int len = in.readInt();
+			int payloadLen;
+			if(exchangeIdWord > 0 && len > 0)
+			{
+				frames.add(new WfqFrame(offset, raw[offset + 2 * Integer.BYTES]));
+				payloadLen = len;
+			} else
+			{
+				if(exchangeIdWord < 0 && len == 0)
+					frames.add(new WfqFrame(offset, (byte) 'E'));
+				// An open frame for multiple exchanges lists their IDs.
+				payloadLen = exchangeIdWord == 0 && len < 0 ? -len * Integer.BYTES : 0;
+			}
+			in.skipNBytes(payloadLen);
+			offset += 2 * Integer.BYTES + payloadLen;
+		}
+		return frames;
+	}
+
+	private static record WfqFrame(int offset, byte kind)
+	{}
+
+	/**
+	 * Waits until the given thread is in the given method, after its progress went beyond the given value.
+	 * Otherwise, the thread might still be leaving that method from last time,
+	 * and the interrupt could hit it somewhere else, for example while it's writing a frame.
+	 * If the thread ended before that, its result is reported to its group first, so that is what the test fails with.
+	 */
+	private static void awaitInMethod(Thread thread, String methodName, AtomicInteger progress, int lastProgress) throws InterruptedException
+	{
+		while(progress.get() <= lastProgress
+				|| Arrays.stream(thread.getStackTrace()).noneMatch(element -> element.getMethodName().equals(methodName)))
+		{
+			if(!thread.isAlive())
+				throw new AssertionError(thread.getName() + " ended without reaching " + methodName);
+			Thread.sleep(1);
+		}
+	}
+
+	private static int readInterruptTestBytes(InputStream in, int read, int len) throws IOException
+	{
+		byte[] bytes = in.readNBytes(len);
+		assertEquals(len, bytes.length);
+		for(int i = 0; i < len; i ++)
+			assertEquals(interruptTestByte(read + i), bytes[i]);
+		return read + len;
+	}
+
+	private static byte interruptTestByte(int index)
+	{
+		return (byte) (index * 7 + index / 256);
+	}
+
+	private static ByteBuffer slice(SharedMemorySlices slices, int index)
+	{
+		return index < slices.first().capacity() ? slices.first() : slices.second();
+	}
+
+	private static int sliceIndex(SharedMemorySlices slices, int index)
+	{
+		return index < slices.first().capacity() ? index : index - slices.first().capacity();
+	}
+
+	private static byte slicesTestByte(int index)
+	{
+		return (byte) (index * 31 + index / 256);
+	}
+
 	private void startStressTestsThreads(ExchangePool pool, boolean readFirst, Random seedRnd, byte[] msg, int parallelExchanges,
 			DaemonThreadGroup group, CyclicBarrier barrier)
 	{
@@ -212,12 +717,31 @@ public class TestExchanges
 	private static void runTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action) throws Exception
 	{
 		if(TEST_MULTIPLEXED)
-			try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped();
-					MultiplexedExchangePool pool1 = new MultiplexedExchangePool(rawPipedExchange.a());
-					MultiplexedExchangePool pool2 = new MultiplexedExchangePool(rawPipedExchange.b()))
-			{
-				action.accept(pool1, pool2);
-			}
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT);
+
+		if(TEST_MULTIPLEXED_WINDOWED)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW));
+
+		if(TEST_MULTIPLEXED_WRITER_THREAD)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withUseFrameWriterThread(true));
+		if(TEST_MULTIPLEXED_BATCHING)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW)
+					.withUseFrameWriterThread(true).withMaxBatchingDelayNanos(TEST_MAX_BATCHING_DELAY_NANOS));
+
+		if(TEST_MULTIPLEXED_RESERVOIR)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withReservoir(TEST_RESERVOIR_DEPTH, TEST_RESERVOIR_REFILL_THRESHOLD));
+
+		if(TEST_MULTIPLEXED_ZERO_RTT)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_RECEIVE_WINDOW).withZeroRttOpen(true));
+
+		if(TEST_MULTIPLEXED_FRAGMENTED)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withMaxFrameSize(TEST_MAX_FRAME_SIZE));
+
+		if(TEST_MULTIPLEXED_BUDGETED)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(TEST_BUDGETED_RECEIVE_WINDOW).withReceiveBufferBudget(TEST_RECEIVE_BUFFER_BUDGET));
+
+		if(TEST_MULTIPLEXED_PUBLISH_ON_FLUSH)
+			runMultiplexedTest(action, MultiplexedExchangePoolConfig.DEFAULT, SharedMemoryOutputStream.PUBLISH_ON_FLUSH_ONLY);
 
 		if(TEST_PIPED)
 			try(PipesExchangePool pool = new PipesExchangePool())
@@ -230,6 +754,208 @@ public class TestExchanges
 			{
 				action.accept(pool, pool.getClient());
 			}
+
+		if(TEST_PIPED_PARKING)
+			runPipedTest(action, WaitStrategy.spinThenPark(TEST_MIN_SPIN_NANOS, SharedMemoryCommon.DEFAULT_BUSY_WAIT_TIMEOUT_NANOS));
+
+		if(TEST_PIPED_BLOCKING)
+			runPipedTest(action, WaitStrategy.block());
+
+		if(TEST_PIPED_ADAPTIVE)
+			runPipedTest(action, WaitStrategy.adaptive(TEST_MIN_SPIN_NANOS, SharedMemoryCommon.DEFAULT_BUSY_WAIT_TIMEOUT_NANOS));
+
+		if(TEST_PIPED_NO_SPINNERS)
+			runPipedTestWithoutSpinners(action);
+
+		if(TEST_SHAREDMEM)
+			runSharedMemoryTest(action, false);
+
+		if(TEST_SHAREDMEM_PREFAULTED)
+			runSharedMemoryTest(action, true);
+	}
+
+	private static void runSharedMemoryTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, boolean prefault) throws Exception
+	{
+		runSharedMemoryTest(action, SharedMemoryCommon.DEFAULT_WAIT_STRATEGY, prefault);
+	}
+
+	private static void runSharedMemoryTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, WaitStrategy waitStrategy,
+			boolean prefault) throws Exception
+	{
+		Path sharedFile = Files.createTempFile("exchanges", ".sharedmem");
+		try(PipesExchangePool slowExchangePool = new PipesExchangePool(Exchange::openPipedNoSharedMemory);
+				SharedMemoryExchangePool pool1 = new SharedMemoryExchangePool(slowExchangePool, sharedFile, true,
+						SharedMemoryExchangePool.DEFAULT_BUFSIZE_PER_EXCHANGE_DIRECTION, waitStrategy,
+						SharedMemoryExchangePool.DEFAULT_MAX_OPEN_EXCHANGES, prefault);
+				SharedMemoryExchangePool pool2 = new SharedMemoryExchangePool(slowExchangePool.getClient(), sharedFile, false,
+						SharedMemoryExchangePool.DEFAULT_BUFSIZE_PER_EXCHANGE_DIRECTION, waitStrategy,
+						SharedMemoryExchangePool.DEFAULT_MAX_OPEN_EXCHANGES, prefault))
+		{
+			action.accept(pool1, pool2);
+		} finally
+		{
+			Files.delete(sharedFile);
+		}
+	}
+
+	private static void runPipedTestWithoutSpinners(ThrowingBiConsumer<ExchangePool, ExchangePool> action) throws Exception
+	{
+		// The spin governor is global, but tests don't run concurrently.
+		int maxSpinners = SpinGovernor.getMaxSpinners();
+		SpinGovernor.setMaxSpinners(0);
+		try
+		{
+			runPipedTest(action, SharedMemoryCommon.DEFAULT_WAIT_STRATEGY);
+		} finally
+		{
+			SpinGovernor.setMaxSpinners(maxSpinners);
+		}
+	}
+
+	private static void runPipedTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, WaitStrategy waitStrategy) throws Exception
+	{
+		try(PipesExchangePool pool = new PipesExchangePool(() -> Exchange.openPiped(Exchange.DEFAULT_SHAREDMEM_BUFSIZE, waitStrategy)))
+		{
+			action.accept(pool, pool.getClient());
+		}
+	}
+
+	private static void runMultiplexedTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, MultiplexedExchangePoolConfig config) throws Exception
+	{
+		runMultiplexedTest(action, config, SharedMemoryOutputStream.PUBLISH_ON_EVERY_WRITE);
+	}
+	private static void runMultiplexedTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, MultiplexedExchangePoolConfig config, int rawPublishThreshold)
+			throws Exception
+	{
+		try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped())
+		{
+			// The multiplexer flushes after each frame, so it works with any publish threshold.
+			((SharedMemoryOutputStream) rawPipedExchange.a().out()).setPublishThreshold(rawPublishThreshold);
+			((SharedMemoryOutputStream) rawPipedExchange.b().out()).setPublishThreshold(rawPublishThreshold);
+			runMultiplexedTest(action, config, rawPipedExchange);
+		}
+	}
+	private static void runMultiplexedTest(ThrowingBiConsumer<ExchangePool, ExchangePool> action, MultiplexedExchangePoolConfig config,
+			AutoCloseablePair<Exchange, Exchange> rawPipedExchange) throws Exception
+	{
+		try(MultiplexedExchangePool pool1 = new MultiplexedExchangePool(rawPipedExchange.a(), config);
+				MultiplexedExchangePool pool2 = new MultiplexedExchangePool(rawPipedExchange.b(), config))
+		{
+			action.accept(pool1, pool2);
+		}
+	}
+
+	/**
+	 * Takes time proportional to the number of bytes written and records them.
+	 */
+	private static class ThrottledRecordingOutputStream extends OutputStream
+	{
+		private final OutputStream			out;
+		private final ByteArrayOutputStream	recorded;
+
+		public ThrottledRecordingOutputStream(OutputStream out)
+		{
+			this.out = out;
+			this.recorded = new ByteArrayOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte) b});
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			recorded.write(b, off, len);
+			LockSupport.parkNanos((long) len * WFQ_THROTTLE_NANOS_PER_BYTE);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+
+		public int size()
+		{
+			return recorded.size();
+		}
+
+		public void awaitSize(int size) throws InterruptedException
+		{
+			while(recorded.size() < size)
+				Thread.sleep(1);
+		}
+
+		public byte[] toByteArray()
+		{
+			return recorded.toByteArray();
+		}
+	}
+
+	/**
+	 * Blocks writes while the gate is closed.
+	 */
+	private static class GatedOutputStream extends OutputStream
+	{
+		private final OutputStream	out;
+		private final Semaphore		gate;
+
+		public GatedOutputStream(OutputStream out)
+		{
+			this.out = out;
+			this.gate = new Semaphore(1);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] {(byte) b});
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			gate.acquireUninterruptibly();
+			try
+			{
+				out.write(b, off, len);
+			} finally
+			{
+				gate.release();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			out.close();
+		}
+
+		public void closeGate()
+		{
+			gate.acquireUninterruptibly();
+		}
+
+		public void openGate()
+		{
+			gate.release();
+		}
 	}
 
 	private static class DaemonThreadGroup
@@ -243,7 +969,7 @@ public class TestExchanges
 			threadCount = new AtomicInteger();
 		}
 
-		public void startThread(String name, ThrowingRunnable action)
+		public Thread startThread(String name, ThrowingRunnable action)
 		{
 			threadCount.incrementAndGet();
 			Thread thread = new Thread(() ->
@@ -275,6 +1001,7 @@ public class TestExchanges
 			}, name);
 			thread.setDaemon(true);
 			thread.start();
+			return thread;
 		}
 
 		public void waitForCompletionOrError() throws Exception
@@ -0,0 +1,107 @@
+package net.haspamelodica.exchanges.multiplexed;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.haspamelodica.exchanges.Exchange;
+import net.haspamelodica.exchanges.util.AutoCloseablePair;
+
+/**
+ * Tests of the package-private parts of ID reuse, which {@link net.haspamelodica.exchanges.TestExchanges} can't reach.
+ */
+public class TestExchangeIds
+{
+	// Zero-RTT open lets one thread open both sides of an exchange.
+	private static final MultiplexedExchangePoolConfig	CONFIG			= MultiplexedExchangePoolConfig.DEFAULT.withReceiveWindow(4096).withZeroRttOpen(true);
+	// more than the initial capacity of an ExchangeTable, so the tables have to grow
+	private static final int							PEAK_EXCHANGES	= 40;
+	private static final int							ROUNDS			= 5;
+
+	@Test
+	public void testIdReusedAfterLocalClose() throws IOException
+	{
+		try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped();
+				MultiplexedExchangePool pool1 = new MultiplexedExchangePool(rawPipedExchange.a(), CONFIG);
+				MultiplexedExchangePool pool2 = new MultiplexedExchangePool(rawPipedExchange.b(), CONFIG))
+		{
+			MultiplexedExchange closed = pool1.createNewExchange();
+			MultiplexedExchange peerOfClosed = pool2.createNewExchange();
+			MultiplexedExchange open = pool1.createNewExchange();
+			pool2.createNewExchange();
+
+			// The other side still has its streams open, but that doesn't keep the ID from being reused.
+			closed.close();
+			MultiplexedExchange reusing = pool1.createNewExchange();
+			MultiplexedExchange peerOfReusing = pool2.createNewExchange();
+			awaitFramesProcessed(reusing, peerOfReusing);
+			assertEquals(closed.id(), reusing.id());
+			assertTrue(open.id() != reusing.id());
+
+			// The other side unregistered the closed exchange before registering the new one with the same ID.
+			assertEquals(reusing.id(), peerOfReusing.peerId());
+			assertSame(peerOfReusing, pool2.exchanges().get(reusing.id()));
+			peerOfClosed.close();
+		}
+	}
+
+	@Test
+	public void testTablesBoundedByConcurrentExchanges() throws IOException
+	{
+		try(AutoCloseablePair<Exchange, Exchange> rawPipedExchange = Exchange.openPiped();
+				MultiplexedExchangePool pool1 = new MultiplexedExchangePool(rawPipedExchange.a(), CONFIG);
+				MultiplexedExchangePool pool2 = new MultiplexedExchangePool(rawPipedExchange.b(), CONFIG))
+		{
+			int capacity1 = -1;
+			int capacity2 = -1;
+			for(int round = 0; round < ROUNDS; round ++)
+			{
+				List<MultiplexedExchange> exchanges = new ArrayList<>();
+				for(int i = 0; i < PEAK_EXCHANGES; i ++)
+				{
+					exchanges.add(pool1.createNewExchange());
+					exchanges.add(pool2.createNewExchange());
+				}
+				awaitFramesProcessed(exchanges.get(exchanges.size() - 2), exchanges.get(exchanges.size() - 1));
+				for(MultiplexedExchange exchange : exchanges)
+				{
+					assertTrue(exchange.id() <= PEAK_EXCHANGES, "ID " + exchange.id() + " beyond peak");
+					assertTrue(exchange.peerId() <= PEAK_EXCHANGES, "peer ID " + exchange.peerId() + " beyond peak");
+				}
+				for(MultiplexedExchange exchange : exchanges)
+					exchange.close();
+
+				if(round == 0)
+				{
+					capacity1 = pool1.exchanges().capacity();
+					capacity2 = pool2.exchanges().capacity();
+					assertTrue(capacity1 > PEAK_EXCHANGES);
+					assertTrue(capacity2 > PEAK_EXCHANGES);
+				} else
+				{
+					assertEquals(capacity1, pool1.exchanges().capacity());
+					assertEquals(capacity2, pool2.exchanges().capacity());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a byte in both directions of the given exchange, so both reader threads have processed all frames sent before.
+	 */
+	private static void awaitFramesProcessed(MultiplexedExchange exchange, MultiplexedExchange peer) throws IOException
+	{
+		exchange.out().write(1);
+		exchange.out().flush();
+		assertEquals(1, peer.in().read());
+		peer.out().write(2);
+		peer.out().flush();
+		assertEquals(2, exchange.in().read());
+	}
+}
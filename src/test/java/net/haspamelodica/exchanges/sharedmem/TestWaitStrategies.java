@@ -0,0 +1,142 @@
+package net.haspamelodica.exchanges.sharedmem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import net.haspamelodica.exchanges.sharedmem.SpinGovernor.GovernedWaitStrategy;
+
+/**
+ * Tests of the package-private parts of wait strategies, which {@link net.haspamelodica.exchanges.TestExchanges} can't reach.
+ */
+public class TestWaitStrategies
+{
+	private static final long	MIN_SPIN_NANOS		= 1_000;
+	private static final long	MAX_SPIN_NANOS		= 100_000;
+	// long enough to never end a busy wait during a test
+	private static final long	GOVERNED_SPIN_NANOS	= 1_000_000_000_000L;
+
+	@Test
+	public void testAdaptiveBudgetHalvesAfterLongWaits()
+	{
+		AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(MIN_SPIN_NANOS, MAX_SPIN_NANOS);
+		assertEquals(MAX_SPIN_NANOS, strategy.spinBudgetNanos());
+		strategy.waitEnded(false, MAX_SPIN_NANOS, MAX_SPIN_NANOS + 1);
+		assertEquals(MAX_SPIN_NANOS / 2, strategy.spinBudgetNanos());
+		strategy.waitEnded(false, MAX_SPIN_NANOS / 2, 10 * MAX_SPIN_NANOS);
+		assertEquals(MAX_SPIN_NANOS / 4, strategy.spinBudgetNanos());
+	}
+
+	@Test
+	public void testAdaptiveBudgetGrowsToTwiceTheWait()
+	{
+		AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(MIN_SPIN_NANOS, MAX_SPIN_NANOS);
+		strategy.waitEnded(false, MAX_SPIN_NANOS, MAX_SPIN_NANOS + 1);
+		strategy.waitEnded(false, MAX_SPIN_NANOS / 2, MAX_SPIN_NANOS + 1);
+		assertEquals(25_000, strategy.spinBudgetNanos());
+
+		strategy.waitEnded(true, 40_000, 40_000);
+		assertEquals(80_000, strategy.spinBudgetNanos());
+
+		// A short wait only lets the budget decay slowly.
+		strategy.waitEnded(true, 1_000, 1_000);
+		assertEquals(70_000, strategy.spinBudgetNanos());
+	}
+
+	@Test
+	public void testAdaptiveBudgetIsClamped()
+	{
+		AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(MIN_SPIN_NANOS, MAX_SPIN_NANOS);
+		strategy.waitEnded(true, MAX_SPIN_NANOS, MAX_SPIN_NANOS);
+		assertEquals(MAX_SPIN_NANOS, strategy.spinBudgetNanos());
+
+		for(int i = 0; i < 10; i ++)
+			strategy.waitEnded(false, 0, MAX_SPIN_NANOS + 1);
+		assertEquals(MIN_SPIN_NANOS, strategy.spinBudgetNanos());
+		strategy.waitEnded(true, 0, 0);
+		assertEquals(MIN_SPIN_NANOS, strategy.spinBudgetNanos());
+	}
+
+	@Test
+	public void testSpinGovernorPrefersRecentTraffic() throws InterruptedException
+	{
+		int oldMaxSpinners = SpinGovernor.getMaxSpinners();
+		SpinGovernor.setMaxSpinners(1);
+		try
+		{
+			WaitStrategy older = SpinGovernor.govern(WaitStrategy.spin(GOVERNED_SPIN_NANOS).forStream());
+			// Traffic times are System.nanoTime(), so this makes sure they differ.
+			Thread.sleep(1);
+			WaitStrategy newer = SpinGovernor.govern(WaitStrategy.spin(GOVERNED_SPIN_NANOS).forStream());
+
+			long busyWaitStartNanos = System.nanoTime();
+			assertTrue(older.idle(0, busyWaitStartNanos));
+			assertTrue(older.idle(1, busyWaitStartNanos));
+
+			assertTrue(newer.idle(0, busyWaitStartNanos));
+			assertFalse(older.idle(2, busyWaitStartNanos));
+			// The slot isn't given back to a spinner with older traffic.
+			assertFalse(older.idle(0, busyWaitStartNanos));
+			assertTrue(newer.idle(1, busyWaitStartNanos));
+
+			// Ending a wait counts as traffic, so now the other one takes the slot.
+			Thread.sleep(1);
+			older.waitEnded(false, 0, 0);
+			assertTrue(older.idle(0, System.nanoTime()));
+			assertFalse(newer.idle(2, busyWaitStartNanos));
+		} finally
+		{
+			SpinGovernor.setMaxSpinners(oldMaxSpinners);
+		}
+	}
+
+	@Test
+	public void testSpinGovernorKeepsSlotFromNonSpinners() throws InterruptedException
+	{
+		int oldMaxSpinners = SpinGovernor.getMaxSpinners();
+		SpinGovernor.setMaxSpinners(1);
+		try
+		{
+			WaitStrategy spinner = SpinGovernor.govern(WaitStrategy.spin(GOVERNED_SPIN_NANOS).forStream());
+			Thread.sleep(1);
+			WaitStrategy blocker = SpinGovernor.govern(WaitStrategy.block().forStream());
+
+			long busyWaitStartNanos = System.nanoTime();
+			assertTrue(spinner.idle(0, busyWaitStartNanos));
+			// The blocker has newer traffic, but doesn't want to spin, so it doesn't take the slot.
+			assertFalse(blocker.idle(0, busyWaitStartNanos));
+			assertTrue(spinner.idle(1, busyWaitStartNanos));
+		} finally
+		{
+			SpinGovernor.setMaxSpinners(oldMaxSpinners);
+		}
+	}
+
+	@Test
+	public void testSpinGovernorCountsTrafficWithoutWait() throws InterruptedException
+	{
+		int oldMaxSpinners = SpinGovernor.getMaxSpinners();
+		SpinGovernor.setMaxSpinners(1);
+		try
+		{
+			GovernedWaitStrategy older = SpinGovernor.govern(WaitStrategy.spin(GOVERNED_SPIN_NANOS).forStream());
+			Thread.sleep(1);
+			GovernedWaitStrategy newer = SpinGovernor.govern(WaitStrategy.spin(GOVERNED_SPIN_NANOS).forStream());
+
+			long busyWaitStartNanos = System.nanoTime();
+			assertTrue(newer.idle(0, busyWaitStartNanos));
+			assertFalse(older.idle(0, busyWaitStartNanos));
+
+			// Finding data right away counts as traffic as well, so now the other one takes the slot.
+			Thread.sleep(1);
+			older.trafficSeen();
+			assertTrue(older.idle(0, System.nanoTime()));
+			assertFalse(newer.idle(1, busyWaitStartNanos));
+		} finally
+		{
+			SpinGovernor.setMaxSpinners(oldMaxSpinners);
+		}
+	}
+}